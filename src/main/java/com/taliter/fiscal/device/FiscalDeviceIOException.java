@@ -2,11 +2,15 @@ package com.taliter.fiscal.device;
 
 import java.io.*;
 
-/** The base class of all fiscal device exceptions. */
+/** The base class of all fiscal device exceptions.
+The description of the associated packets is added to the message when the message is first requested, so it
+shows their contents at that time. Callers that reuse the packets for later requests should get the message first. */
 public class FiscalDeviceIOException extends IOException
 {
 	private FiscalPacket request;
 	private FiscalPacket response;
+	private transient String message;
+	private transient boolean messageBuilt;
 
 	public FiscalDeviceIOException() {}
 	public FiscalDeviceIOException(String s) { super(s); }
@@ -14,30 +18,34 @@ public class FiscalDeviceIOException extends IOException
 	public FiscalDeviceIOException(FiscalPacket request, FiscalPacket response) { this(null, request, response); }
 	public FiscalDeviceIOException(String s, FiscalPacket request, FiscalPacket response)
 	{
-		super(buildMessage(s, request, response));
+		super(s);
 		this.request = request;
 		this.response = response;
 	}
 
-	private static String buildMessage(String s, FiscalPacket request, FiscalPacket response)
+	public synchronized String getMessage()
 	{
-		String d;
-		if (request != null)
+		if (!messageBuilt)
 		{
-			if (response != null) d = "request: " + request + ", response: " + response;
-			else d = "request: " + request;
+			message = buildMessage(super.getMessage(), request, response);
+			messageBuilt = true;
 		}
-		else
-		{
-			if (response != null) d = "response: " + response;
-			else d = null;
-		}
-		if (d != null)
+		return message;
+	}
+
+	private static String buildMessage(String s, FiscalPacket request, FiscalPacket response)
+	{
+		if (request == null && response == null) return s;
+		StringBuilder b = new StringBuilder();
+		if (s != null) b.append(s).append(' ').append('(');
+		if (request != null)
 		{
-			if (s != null) s += " (" + d + ")";
-			else s = d;
+			b.append("request: ").append(request);
+			if (response != null) b.append(", ");
 		}
-		return s;
+		if (response != null) b.append("response: ").append(response);
+		if (s != null) b.append(')');
+		return b.toString();
 	}
 
 	/** Get the request associated with this exception, if any. */
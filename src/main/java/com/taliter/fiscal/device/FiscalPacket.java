@@ -129,6 +129,13 @@ public interface FiscalPacket extends Serializable
 	/** Get a numeric field as a BigDecimal. */
 	public BigDecimal getBigDecimal(int field);
 
+	/** Set a numeric field from a fixed-point value, given as an unscaled value and a number of decimals (0 or more).
+	For example, an unscaled value of 12345 with a scale of 2 sets the field to 123.45. */
+	public void setFixed(int field, long unscaled, int scale);
+	/** Get a numeric field as an unscaled fixed-point value with the specified number of decimals (0 or more).
+	Throws ArithmeticException if the value has more nonzero decimals or does not fit in a long. */
+	public long getFixed(int field, int scale);
+
 	// Date And Time Fields
 
 	/** Set a date field by specifying year (full 4 digit value), month of year (1 to 12) and day of month (1 to 31). */
@@ -7,12 +7,15 @@ import com.taliter.fiscal.device.*;
 import com.taliter.fiscal.util.*;
 
 /** An abstract base class for FiscalPacket implementations. */
-public abstract class AbstractFiscalPacket implements FiscalPacket
+public abstract class AbstractFiscalPacket implements FiscalPacket, Cloneable
 {
 	private static final boolean DISCARD_LEAP_SECOND = true;
 
 	private static final byte[] EMPTY_FIELD = new byte[0];
 
+	private static final double[] DOUBLE_POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static final float[] FLOAT_POWERS_OF_TEN = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
 	private List fields = new ArrayList();
 
 	public boolean equals(Object o)
@@ -26,6 +29,13 @@ public abstract class AbstractFiscalPacket implements FiscalPacket
 		return true;
 	}
 
+	public int hashCode()
+	{
+		int h = 1;
+		for (int i = 0, s = getSize(); i < s; i++) h = 31 * h + Arrays.hashCode(get(i));
+		return h;
+	}
+
 	public Object clone()
 	{
 		AbstractFiscalPacket p;
@@ -49,12 +59,12 @@ public abstract class AbstractFiscalPacket implements FiscalPacket
 
 	public String toHexString()
 	{
-		StringBuffer b = new StringBuffer();
+		StringBuilder b = new StringBuilder();
 		b.append('{');
 		for (int i = 0, s = getSize(); i < s; i++)
 		{
 			b.append(' ');
-			ByteFormatter.toHexString(b, get(i));
+			ByteFormatter.toHexString(b, getFieldArray(i), getFieldOffset(i), getLength(i));
 		}
 		b.append(' ').append('}');
 		return b.toString();
@@ -62,12 +72,12 @@ public abstract class AbstractFiscalPacket implements FiscalPacket
 
 	public String toASCIIString()
 	{
-		StringBuffer b = new StringBuffer();
+		StringBuilder b = new StringBuilder();
 		b.append('{');
 		for (int i = 0, s = getSize(); i < s; i++)
 		{
 			b.append(' ');
-			ByteFormatter.toASCIIString(b, get(i));
+			ByteFormatter.toASCIIString(b, getFieldArray(i), getFieldOffset(i), getLength(i));
 		}
 		b.append(' ').append('}');
 		return b.toString();
@@ -191,17 +201,97 @@ public abstract class AbstractFiscalPacket implements FiscalPacket
 
 	// Numeric Fields
 
-	public void setInt(int field, int value) { setString(field, String.valueOf(value)); }
-	public int getInt(int field) { return Integer.parseInt(getString(field)); }
+	public void setInt(int field, int value)
+	{
+		if (isASCIICompatible()) setASCIIDecimal(field, value, 0);
+		else setString(field, String.valueOf(value));
+	}
+
+	public int getInt(int field)
+	{
+		if (isASCIICompatible())
+		{
+			long x = parseASCIILong(getFieldArray(field), getFieldOffset(field), getLength(field));
+			if (x >= Integer.MIN_VALUE && x <= Integer.MAX_VALUE) return (int) x;
+		}
+		return Integer.parseInt(getString(field));
+	}
+
+	public void setLong(int field, long value)
+	{
+		if (isASCIICompatible()) setASCIIDecimal(field, value, 0);
+		else setString(field, String.valueOf(value));
+	}
+
+	public long getLong(int field)
+	{
+		if (isASCIICompatible())
+		{
+			long x = parseASCIILong(getFieldArray(field), getFieldOffset(field), getLength(field));
+			if (x != Long.MIN_VALUE) return x;
+		}
+		return Long.parseLong(getString(field));
+	}
+
+	public void setFloat(int field, float value)
+	{
+		if (isASCIICompatible())
+		{
+			// Use the shortest decimal that reads back as the same value, as String.valueOf() does.
+			float a = Math.abs(value);
+			if (a >= 1e-3f && a < 1e7f)
+			{
+				for (int s = 1; s <= 9; s++)
+				{
+					long m = (long) Math.rint((double) value * DOUBLE_POWERS_OF_TEN[s]);
+					if (Math.abs(m) >= 1 << 24) break;
+					if ((float) m / FLOAT_POWERS_OF_TEN[s] == value) { setASCIIDecimal(field, m, s); return; }
+				}
+			}
+			else if (value == 0 && 1 / value > 0) { setASCIIDecimal(field, 0, 1); return; }
+		}
+		setString(field, new BigDecimal(String.valueOf(value)).toString());
+	}
 
-	public void setLong(int field, long value) { setString(field, String.valueOf(value)); }
-	public long getLong(int field) { return Long.parseLong(getString(field)); }
+	public float getFloat(int field)
+	{
+		if (isASCIICompatible())
+		{
+			double x = parseASCIIDouble(getFieldArray(field), getFieldOffset(field), getLength(field), true);
+			if (x == x) return (float) x;
+		}
+		return Float.parseFloat(getString(field));
+	}
 
-	public void setFloat(int field, float value) { setString(field, new BigDecimal(String.valueOf(value)).toString()); }
-	public float getFloat(int field) { return Float.parseFloat(getString(field)); }
+	public void setDouble(int field, double value)
+	{
+		if (isASCIICompatible())
+		{
+			// Use the shortest decimal that reads back as the same value, as String.valueOf() does.
+			double a = Math.abs(value);
+			if (a >= 1e-3 && a < 1e7)
+			{
+				for (int s = 1; s <= 9; s++)
+				{
+					long m = (long) Math.rint(value * DOUBLE_POWERS_OF_TEN[s]);
+					if (Math.abs(m) >= 1L << 53) break;
+					if (m / DOUBLE_POWERS_OF_TEN[s] == value) { setASCIIDecimal(field, m, s); return; }
+				}
+			}
+			else if (value == 0 && 1 / value > 0) { setASCIIDecimal(field, 0, 1); return; }
+		}
+		setString(field, new BigDecimal(String.valueOf(value)).toString());
+	}
 
-	public void setDouble(int field, double value) { setString(field, new BigDecimal(String.valueOf(value)).toString()); }
-	public double getDouble(int field) { return Double.parseDouble(getString(field)); }
+	public double getDouble(int field)
+	{
+		if (isASCIICompatible())
+		{
+			double x = parseASCIIDouble(getFieldArray(field), getFieldOffset(field), getLength(field), false);
+			if (x == x) return x;
+		}
+		return Double.parseDouble(getString(field));
+	}
 
 	public void setBigInteger(int field, BigInteger value) { setString(field, value.toString()); }
 	public BigInteger getBigInteger(int field) { return new BigInteger(getString(field)); }
@@ -209,6 +299,203 @@ public abstract class AbstractFiscalPacket implements FiscalPacket
 	public void setBigDecimal(int field, BigDecimal value) { setString(field, value.toString()); }
 	public BigDecimal getBigDecimal(int field) { return new BigDecimal(getString(field)); }
 
+	public void setFixed(int field, long unscaled, int scale)
+	{
+		if (scale < 0) throw new IllegalArgumentException();
+		if (isASCIICompatible()) setASCIIDecimal(field, unscaled, scale);
+		else setString(field, BigDecimal.valueOf(unscaled, scale).toPlainString());	// Never in scientific notation.
+	}
+
+	public long getFixed(int field, int scale)
+	{
+		if (scale < 0) throw new IllegalArgumentException();
+		if (isASCIICompatible())
+		{
+			long x = parseASCIIFixed(getFieldArray(field), getFieldOffset(field), getLength(field), scale);
+			if (x != Long.MIN_VALUE) return x;
+		}
+		BigInteger x = getBigDecimal(field).setScale(scale).unscaledValue();
+		if (x.bitLength() > 63) throw new ArithmeticException("Overflow");
+		return x.longValue();
+	}
+
+	// ASCII Numbers
+
+	/** Return true if the digits, signs and decimal point are encoded as in ASCII. Numeric fields are then encoded and
+	parsed directly, without going through setString() and getString(). Returns false by default. */
+	protected boolean isASCIICompatible() { return false; }
+
+	/** Get the array holding the bytes of a field, which start at getFieldOffset() and span getLength().
+	By default get() is returned. The array must not be modified. */
+	protected byte[] getFieldArray(int field) { return get(field); }
+	/** Get the offset of a field in the array returned by getFieldArray(). Returns 0 by default. */
+	protected int getFieldOffset(int field) { return 0; }
+
+	/** Set a field to the ASCII representation of a decimal value with the specified number of decimals.
+	The value is the unscaled value, so 12345 with a scale of 2 is encoded as "123.45". */
+	protected void setASCIIDecimal(int field, long unscaled, int scale)
+	{
+		byte[] v = new byte[getASCIIDecimalLength(unscaled, scale)];
+		putASCIIDecimal(v, 0, unscaled, scale);
+		set(field, v);
+	}
+
+	/** Set a field to the ASCII representation of a non-negative integer, padded with zeros to the specified number of digits. */
+	protected void setASCIIDigits(int field, int value, int digits)
+	{
+		byte[] v = new byte[digits];
+		putASCIIDigits(v, 0, value, digits);
+		set(field, v);
+	}
+
+	/** Write the ASCII representation of a non-negative integer to an array, padded with zeros to the specified number of digits.
+	Higher digits of the value are discarded. */
+	protected static void putASCIIDigits(byte[] b, int offset, int value, int digits)
+	{
+		if (value < 0) throw new IllegalArgumentException();
+		for (int p = offset + digits; p > offset; value /= 10) b[--p] = (byte) ('0' + value % 10);
+	}
+
+	/** Parse unsigned ASCII digits (at most 9).
+	@return the value, or -1 if the bytes are not in that form. */
+	protected static int parseASCIIDigits(byte[] b, int offset, int length)
+	{
+		if (length == 0 || length > 9) return -1;
+		int x = 0;
+		for (int p = offset, e = offset + length; p < e; p++)
+		{
+			int d = b[p] - '0';
+			if (d < 0 || d > 9) return -1;
+			x = x * 10 + d;
+		}
+		return x;
+	}
+
+	/** Get the length of the ASCII representation of a decimal value. */
+	protected static int getASCIIDecimalLength(long unscaled, int scale)
+	{
+		if (scale < 0) throw new IllegalArgumentException();
+		int n = 1;
+		for (long x = unscaled < 0 ? unscaled : -unscaled; x <= -10; x /= 10) n++;
+		if (scale != 0) n = (n > scale ? n : scale + 1) + 1;
+		return unscaled < 0 ? n + 1 : n;
+	}
+
+	/** Write the ASCII representation of a decimal value to an array.
+	@return the offset after the last byte written. */
+	protected static int putASCIIDecimal(byte[] b, int offset, long unscaled, int scale)
+	{
+		int e = offset + getASCIIDecimalLength(unscaled, scale);
+		int p = e;
+		long x = unscaled < 0 ? unscaled : -unscaled;	// Negative, so that Long.MIN_VALUE works.
+		if (scale != 0)
+		{
+			for (int i = 0; i < scale; i++) { b[--p] = (byte) ('0' - (int) (x % 10)); x /= 10; }
+			b[--p] = '.';
+		}
+		do { b[--p] = (byte) ('0' - (int) (x % 10)); x /= 10; }
+		while (x != 0);
+		if (unscaled < 0) b[--p] = '-';
+		return e;
+	}
+
+	/** Parse an optionally signed ASCII integer of up to 18 digits.
+	@return the value, or Long.MIN_VALUE if the bytes are not in that form. */
+	protected static long parseASCIILong(byte[] b, int offset, int length)
+	{
+		int p = offset, e = offset + length;
+		boolean negative = false;
+		if (p < e && (b[p] == '-' || b[p] == '+')) negative = b[p++] == '-';
+		if (p == e || e - p > 18) return Long.MIN_VALUE;
+		long x = 0;
+		while (p < e)
+		{
+			int d = b[p++] - '0';
+			if (d < 0 || d > 9) return Long.MIN_VALUE;
+			x = x * 10 + d;
+		}
+		return negative ? -x : x;
+	}
+
+	/** Parse an optionally signed ASCII decimal without exponent as an unscaled value with the specified number of decimals.
+	@return the value, or Long.MIN_VALUE if the bytes are not in that form, the value has more nonzero decimals
+	or the unscaled value has more than 18 digits. */
+	protected static long parseASCIIFixed(byte[] b, int offset, int length, int scale)
+	{
+		int p = offset, e = offset + length;
+		boolean negative = false;
+		if (p < e && (b[p] == '-' || b[p] == '+')) negative = b[p++] == '-';
+		long m = 0;
+		int digits = 0;	// Significant digits.
+		int n = 0;
+		int decimals = -1;
+		for (; p < e; p++)
+		{
+			int x = b[p];
+			if (x == '.' && decimals < 0) { decimals = 0; continue; }
+			int d = x - '0';
+			if (d < 0 || d > 9) return Long.MIN_VALUE;
+			n++;
+			if (decimals >= 0)
+			{
+				if (decimals == scale)
+				{
+					if (d != 0) return Long.MIN_VALUE;
+					continue;
+				}
+				decimals++;
+			}
+			m = m * 10 + d;
+			if (m != 0 && ++digits > 18) return Long.MIN_VALUE;
+		}
+		if (n == 0) return Long.MIN_VALUE;
+		for (int i = decimals > 0 ? decimals : 0; i < scale; i++)
+		{
+			if (m != 0 && ++digits > 18) return Long.MIN_VALUE;
+			m *= 10;
+		}
+		return negative ? -m : m;
+	}
+
+	/** Parse an optionally signed ASCII decimal without exponent, when it can be converted exactly.
+	@return the value, or NaN if the bytes are not in that form or the fast conversion does not apply. */
+	private static double parseASCIIDouble(byte[] b, int offset, int length, boolean single)
+	{
+		int p = offset, e = offset + length;
+		boolean negative = false;
+		if (p < e && (b[p] == '-' || b[p] == '+')) negative = b[p++] == '-';
+		long m = 0;
+		int digits = 0;	// Significant digits.
+		int n = 0;
+		int scale = -1;
+		for (; p < e; p++)
+		{
+			int x = b[p];
+			if (x == '.' && scale < 0) { scale = 0; continue; }
+			int d = x - '0';
+			if (d < 0 || d > 9 || digits == 18) return Double.NaN;
+			m = m * 10 + d;
+			if (m != 0) digits++;
+			if (scale >= 0) scale++;
+			n++;
+		}
+		if (n == 0) return Double.NaN;
+		if (scale < 0) scale = 0;
+		double x;
+		if (single)
+		{
+			// A single rounding when both operands are exact.
+			if (m >= 1 << 24 || scale >= FLOAT_POWERS_OF_TEN.length) return Double.NaN;
+			x = (float) m / FLOAT_POWERS_OF_TEN[scale];
+		}
+		else
+		{
+			if (m >= 1L << 53 || scale >= DOUBLE_POWERS_OF_TEN.length) return Double.NaN;
+			x = m / DOUBLE_POWERS_OF_TEN[scale];
+		}
+		return negative ? -x : x;
+	}
+
 	// Date And Time Fields
 
 	public void setDateAndTime(int dateField, int timeField, int year, int month, int day, int hour, int minute, int second)
@@ -4,6 +4,7 @@ import java.io.*;
 
 import com.taliter.fiscal.device.*;
 import com.taliter.fiscal.port.*;
+import com.taliter.fiscal.util.*;
 
 /** A basic FiscalDevice implementation that does not make assumptions about packet contents. */
 public class BasicFiscalDevice implements FiscalDevice
@@ -12,39 +13,47 @@ public class BasicFiscalDevice implements FiscalDevice
 	private static final boolean REQUIRE_ACKNOWLEDGE = false;	// Must be false for Epson compatibility.
 	private static final boolean MAX_TRIES_EXTENSION = true;
 
-	private static final int ASCII_STX = 0x02;
-	private static final int ASCII_ETX = 0x03;
-	private static final int ASCII_ACK = 0x06;
-	private static final int ASCII_DC1 = 0x11;	// XON
-	private static final int ASCII_DC2 = 0x12;
-	private static final int ASCII_DC3 = 0x13;	// XOFF
-	private static final int ASCII_DC4 = 0x14;
-	private static final int ASCII_NAK = 0x15;
-	private static final int ASCII_ESC = 0x1B;
-	private static final int ASCII_FS  = 0x1C;
-
 	private static final int SN_MIN = 0x20;
 	private static final int SN_MAX = 0x7F;
 	private static final int SN_STEP = 1;
 	private static final int SN_RANGE = SN_MAX - SN_MIN + 1;
 
+	private static final int POOL_SIZE = 16;	// Released packets kept.
+	private static final int INPUT_BUFFER_SIZE = 512;
+
+	private static final int TIMEOUT = FiscalPortInputStream.TIMEOUT;
+
 	private FiscalPort port;
 	private int timeout;
 	private boolean extendedProtocol;
 	private int maxTries;
 	private String encoding;
+	private PacketCharset charset;	// Resolved from encoding when needed.
+	private FiscalPacketPool pool;	// Created when needed.
+	private boolean lazyResponses;
 	private int baseRolloverYear;
 	protected FiscalDeviceEventHandler eventHandler;
+	private Clock clock;
 
-	private InputStream in;
+	private FiscalPortInputStream in;
+	private final byte[] inBuffer = new byte[INPUT_BUFFER_SIZE];	// Received bytes not read yet.
+	private int inPosition;
+	private int inLimit;
 	private OutputStream out;
 	private int serialNumber;
 	private int receivedSerialNumber;
 	private int receivedChecksum;
+	private final HasarFrameCodec decoder = new HasarFrameCodec();
 
 	public BasicFiscalDevice(FiscalPort port, int timeout, boolean extendedProtocol, int maxTries, String encoding, int baseRolloverYear)
+	{
+		this(port, timeout, extendedProtocol, maxTries, encoding, baseRolloverYear, Clock.SYSTEM);
+	}
+
+	public BasicFiscalDevice(FiscalPort port, int timeout, boolean extendedProtocol, int maxTries, String encoding, int baseRolloverYear, Clock clock)
 	{
 		//if (port == null) throw new NullPointerException();
+		if (clock == null) throw new NullPointerException();
 		if (maxTries < 1) throw new IllegalArgumentException();
 		if (baseRolloverYear < 0) throw new IllegalArgumentException();
 		this.port = port;
@@ -53,7 +62,8 @@ public class BasicFiscalDevice implements FiscalDevice
 		this.maxTries = maxTries;
 		this.encoding = encoding;
 		this.baseRolloverYear = baseRolloverYear;
-		serialNumber = ((int) ((System.currentTimeMillis() & (-1L >>> 1)) % (SN_RANGE / SN_STEP))) * SN_STEP + SN_MIN;
+		this.clock = clock;
+		serialNumber = ((int) ((clock.currentTimeMillis() & (-1L >>> 1)) % (SN_RANGE / SN_STEP))) * SN_STEP + SN_MIN;
 	}
 
 	public void open() throws Exception
@@ -64,7 +74,8 @@ public class BasicFiscalDevice implements FiscalDevice
 		try
 		{
 			port.setTimeout(timeout);
-			in = new BufferedInputStream(port.getInputStream());
+			in = FiscalPortInputStream.get(port.getInputStream());
+			inPosition = inLimit = 0;
 			out = port.getOutputStream();
 			receivedSerialNumber = 0;
 			success = true;
@@ -126,7 +137,7 @@ public class BasicFiscalDevice implements FiscalDevice
 	public int getMaxTries() { return maxTries; }
 
 	/** Set the encoding to use for strings in newly created packets. */
-	public void setEncoding(String encoding) { this.encoding = encoding; }
+	public void setEncoding(String encoding) { this.encoding = encoding; charset = null; }
 	/** Get the encoding to use for strings in newly created packets. */
 	public String getEncoding() { return encoding; }
 
@@ -135,10 +146,63 @@ public class BasicFiscalDevice implements FiscalDevice
 	/** Get the base roll-over year to use for dates in newly created packets. Valid years are from baseRolloverYear to baseRolloverYear + 99 inclusive. */
 	public int getBaseRolloverYear() { return baseRolloverYear; }
 
+	/** True to create FlatFiscalPacket objects. Responses are received into these packets as raw bytes, and fields are
+	only decoded when accessed. Packets from acquireFiscalPacket() are always received this way. */
+	public void setLazyResponses(boolean lazyResponses) { this.lazyResponses = lazyResponses; }
+	/** True to create FlatFiscalPacket objects. Responses are received into these packets as raw bytes, and fields are
+	only decoded when accessed. Packets from acquireFiscalPacket() are always received this way. */
+	public boolean getLazyResponses() { return lazyResponses; }
+
+	/** Set the clock used to measure timeouts and to wait. The device may be open. */
+	public void setClock(Clock clock) { if (clock == null) throw new NullPointerException(); this.clock = clock; }
+	/** Get the clock used to measure timeouts and to wait. */
+	public Clock getClock() { return clock; }
+
 	public void setEventHandler(FiscalDeviceEventHandler eventHandler) { this.eventHandler = eventHandler; }
 	public FiscalDeviceEventHandler getEventHandler() { return eventHandler; }
 
-	public FiscalPacket createFiscalPacket() { return new HasarFiscalPacket(encoding, baseRolloverYear); }
+	public FiscalPacket createFiscalPacket()
+	{
+		PacketCharset c = getCharset();
+		if (lazyResponses) return c != null ? new FlatFiscalPacket(c, baseRolloverYear) : new FlatFiscalPacket(encoding, baseRolloverYear);
+		return c != null ? new HasarFiscalPacket(c, baseRolloverYear) : new HasarFiscalPacket(encoding, baseRolloverYear);
+	}
+
+	/** Create a packet that keeps its encoded frame between requests, for requests that are sent repeatedly. */
+	public CompiledFiscalPacket createCompiledFiscalPacket()
+	{
+		PacketCharset c = getCharset();
+		return c != null ? new CompiledFiscalPacket(c, baseRolloverYear) : new CompiledFiscalPacket(encoding, baseRolloverYear);
+	}
+
+	/** Get an empty packet from the packet pool of this device. Pooled packets are FlatFiscalPacket objects
+	and should be returned with releaseFiscalPacket() when no longer in use, so that they can be reused. */
+	public FiscalPacket acquireFiscalPacket()
+	{
+		FiscalPacketPool p = pool;
+		if (p == null || p.getBaseRolloverYear() != baseRolloverYear || (p.getEncoding() != null ? !p.getEncoding().equals(encoding) : encoding != null))
+			pool = p = new FiscalPacketPool(encoding, baseRolloverYear, POOL_SIZE);
+		return p.acquire();
+	}
+
+	/** Return a packet obtained with acquireFiscalPacket() to the packet pool of this device.
+	The packet must not be used afterwards. Other packets are ignored. */
+	public void releaseFiscalPacket(FiscalPacket packet)
+	{
+		FiscalPacketPool p = pool;
+		if (p != null) p.release(packet);
+	}
+
+	private PacketCharset getCharset()
+	{
+		PacketCharset c = charset;
+		if (c == null && encoding != null)
+		{
+			try { charset = c = PacketCharset.forName(encoding); }
+			catch (UnsupportedEncodingException e) {}	// Reported when strings are used.
+		}
+		return c;
+	}
 
 	private int nextSerialNumber()
 	{
@@ -149,137 +213,113 @@ public class BasicFiscalDevice implements FiscalDevice
 
 	private byte[] formatPacket(FiscalPacket packet) throws IOException
 	{
-		// Calculate length.
-		int size = packet.getSize();
-		int l = extendedProtocol ? 8 : 7;
-		for (int i = 0; i < size; i++) l += (i != 0 ? 1 : 0) + packet.get(i).length;
-
-		// Fomart packet.
-		byte[] b = new byte[l];
-		int p = 0;
-		int cs = ASCII_STX + ASCII_ETX;
-		b[p++] = (byte) ASCII_STX;
-		b[p++] = (byte) serialNumber; cs += serialNumber;
-		if (extendedProtocol) { b[p++] = (byte) ASCII_ESC; cs += ASCII_ESC; }
-		for (int i = 0; i < size; i++)
+		if (packet instanceof CompiledFiscalPacket) return ((CompiledFiscalPacket) packet).getFrame(serialNumber, extendedProtocol);
+		return HasarFrameCodec.encode(packet, serialNumber, extendedProtocol);
+	}
+
+	// Receive timeouts are signaled by returning TIMEOUT (not by exceptions) from here on.
+
+	/** Read a byte. Returns TIMEOUT on timeout. */
+	private int read() throws IOException
+	{
+		if (inPosition == inLimit)
 		{
-			if (i != 0) { b[p++] = (byte) ASCII_FS; cs += ASCII_FS; }
-			byte[] f = packet.get(i);
-			int fl = f.length;
-			for (int j = 0; j < fl; j++)
-			{
-				int x = f[j] & 0xFF;
-				if (x < 0x20) throw new IllegalArgumentException("Invalid value in byte " + j + " of field " + i + " (" + x + ")");
-				b[p++] = (byte) x; cs += x;
-			}
+			int l = in.readOrTimeout(inBuffer, 0, inBuffer.length);
+			if (l <= 0) return l;
+			inPosition = 0;
+			inLimit = l;
 		}
-		b[p++] = (byte) ASCII_ETX;
-		for (int k = 12; k >= 0; k -= 4) b[p++] = (byte) Character.toUpperCase(Character.forDigit((cs >> k) & 0xF, 0x10));
-		if (p != l) throw new ArrayIndexOutOfBoundsException();
-		return b;
+		return inBuffer[inPosition++] & 0xFF;
 	}
 
-	private int receivePacket(FiscalPacket packet, FiscalPacket requestToReport) throws IOException { return receivePacket(packet, in.read(), requestToReport); }
+	private int available() throws IOException { return inLimit - inPosition + in.available(); }
+
+	/** Receive a packet. Returns its serial number or TIMEOUT on timeout. */
+	private int receivePacket(FiscalPacket packet, FiscalPacket requestToReport) throws IOException
+	{
+		int x = read();
+		return x != TIMEOUT ? receivePacket(packet, x, requestToReport) : TIMEOUT;
+	}
+
+	/** Receive a packet whose first byte has been read. Returns its serial number or TIMEOUT on timeout. */
 	private int receivePacket(FiscalPacket packet, int x, FiscalPacket requestToReport) throws IOException
 	{
-		ByteArrayOutputStream b = new ByteArrayOutputStream();
-		long t = System.currentTimeMillis();
-		receive: for (;;)
+		long t = clock.currentTimeMillis();
+		int st = FiscalDeviceEventHandler.STATUS_NORMAL;
+		decoder.reset();
+		try
 		{
-			int st = FiscalDeviceEventHandler.STATUS_NORMAL;
-			try
+			for (;; x = read())
 			{
-				while (x != ASCII_STX)	// STX
+				if (x == TIMEOUT) return TIMEOUT;
+				int e = decoder.decode(x);
+				if (e == HasarFrameCodec.DECODE_FRAMING_ERROR)
 				{
-					if (x == ASCII_DC2) onStatus(requestToReport, st = FiscalDeviceEventHandler.STATUS_WORKING);
-					else if (x == ASCII_DC4) onStatus(requestToReport, st = FiscalDeviceEventHandler.STATUS_PAPER_OUT);
-					else
-					{
-						receivedUnexpectedByte(x);
-						if (System.currentTimeMillis() - t >= timeout && timeout >= 0) throw new FiscalPortTimeoutException();
-					}
-					x = in.read();
+					receivedFramingError(packet, x);
+					if (!decoder.inFrame()) e = decoder.decode(x);	// Not an STX, reconsidered outside a frame.
 				}
-			}
-			finally { if (st != FiscalDeviceEventHandler.STATUS_NORMAL) onStatus(requestToReport, FiscalDeviceEventHandler.STATUS_NORMAL); }
-			int cs = x;
-			x = in.read(); cs += x;
-			if (x < 0x20)	// SN
-			{
-				receivedInvalidSerialNumberByte(x);
-				continue receive;
-			}
-			int sn = x;
-			x = in.read(); cs += x;
-			if (x == ASCII_ESC)	// ESC
-			{
-				if (!extendedProtocol) if (!receivedUnexpectedExtendedProtocol(sn)) continue receive;
-				x = in.read(); cs += x;
-			}
-			else
-			{
-				if (extendedProtocol) if (!receivedUnexpectedStandardProtocol(sn)) continue receive;
-			}
-			int s = 0;	// Fields
-			packet.clear();
-			b.reset();
-			for (;;)
-			{
-				if (x >= 0x20)
-				{
-					b.write(x);
-					x = in.read(); cs += x;
-					continue;
-				}
-				packet.set(s++, b.toByteArray());
-				b.reset();
-				if (x == ASCII_FS)
+				if (st != FiscalDeviceEventHandler.STATUS_NORMAL && decoder.inFrame()) onStatus(requestToReport, st = FiscalDeviceEventHandler.STATUS_NORMAL);
+				if (e == HasarFrameCodec.DECODE_NONE || e == HasarFrameCodec.DECODE_FRAMING_ERROR) continue;
+				if (e == HasarFrameCodec.DECODE_CONTROL && decoder.getControl() == HasarFrameCodec.ASCII_DC2) onStatus(requestToReport, st = FiscalDeviceEventHandler.STATUS_WORKING);
+				else if (e == HasarFrameCodec.DECODE_CONTROL && decoder.getControl() == HasarFrameCodec.ASCII_DC4) onStatus(requestToReport, st = FiscalDeviceEventHandler.STATUS_PAPER_OUT);
+				else if (e == HasarFrameCodec.DECODE_CONTROL || e == HasarFrameCodec.DECODE_UNEXPECTED)
 				{
-					x = in.read(); cs += x;
-					continue;
+					receivedUnexpectedByte(x);
+					if (clock.currentTimeMillis() - t >= timeout && timeout >= 0) return TIMEOUT;
 				}
-				if (x == ASCII_ETX) break;
-				receivedInvalidFieldByte(sn, packet, x);
-				continue receive;
-			}
-			cs &= 0xFFFF;	// Checksum
-			int rcs = 0;
-			for (int k = 12; k >= 0; k -= 4)
-			{
-				x = in.read();
-				int d = Character.digit((char) x, 0x10);
-				if (d < 0)
-				{
-					receivedInvalidChecksumByte(sn, packet, rcs, 3 - k / 4, x, cs);
-					continue receive;
-				}
-				rcs |= (d << k);
-			}
-			if (rcs != cs)
-			{
-				if (in.available() == 0)
+				else
 				{
-					out.write(ASCII_NAK);
-					out.flush();
+					// A frame, with a valid or invalid checksum.
+					int sn = decoder.getSerialNumber();
+					if (decoder.isExtendedProtocol() != extendedProtocol)
+					{
+						if (extendedProtocol ? !receivedUnexpectedStandardProtocol(sn) : !receivedUnexpectedExtendedProtocol(sn)) continue;
+					}
+					decoder.getPacket(packet);
+					int cs = decoder.getComputedChecksum();
+					if (e == HasarFrameCodec.DECODE_CHECKSUM_ERROR)
+					{
+						if (available() == 0)
+						{
+							out.write(HasarFrameCodec.ASCII_NAK);
+							out.flush();
+						}
+						receivedInvalidChecksum(sn, packet, decoder.getReceivedChecksum(), cs);
+						continue;
+					}
+					if (ALWAYS_ACKNOWLEDGE || available() == 0)
+					{
+						out.write(HasarFrameCodec.ASCII_ACK);
+						out.flush();
+					}
+					if (receivedSerialNumber == sn && receivedChecksum == cs)
+					{
+						receivedRepeatedPacket(sn, packet);
+						continue;
+					}
+					receivedSerialNumber = sn;
+					receivedChecksum = cs;
+					return sn;
 				}
-				receivedInvalidChecksum(sn, packet, rcs, cs);
-				x = in.read();
-				continue receive;
-			}
-			if (ALWAYS_ACKNOWLEDGE || in.available() == 0)
-			{
-				out.write(ASCII_ACK);
-				out.flush();
-			}
-			if (receivedSerialNumber == sn && receivedChecksum == cs)
-			{
-				receivedRepeatedPacket(sn, packet);
-				x = in.read();
-				continue receive;
 			}
-			receivedSerialNumber = sn;
-			receivedChecksum = cs;
-			return sn;
+		}
+		finally { if (st != FiscalDeviceEventHandler.STATUS_NORMAL) onStatus(requestToReport, FiscalDeviceEventHandler.STATUS_NORMAL); }
+	}
+
+	/** Report the invalid byte of an abandoned frame to the handler of the part of the frame that held it. */
+	private void receivedFramingError(FiscalPacket packet, int x)
+	{
+		switch (decoder.getFramingErrorPart())
+		{
+			case HasarFrameCodec.PART_SERIAL_NUMBER:
+				receivedInvalidSerialNumberByte(x);
+				break;
+			case HasarFrameCodec.PART_FIELDS:
+				receivedInvalidFieldByte(decoder.getSerialNumber(), decoder.getPacket(packet), x);
+				break;
+			case HasarFrameCodec.PART_CHECKSUM:
+				receivedInvalidChecksumByte(decoder.getSerialNumber(), decoder.getPacket(packet), decoder.getReceivedChecksum(), decoder.getChecksumDigits(), x, decoder.getComputedChecksum());
+				break;
 		}
 	}
 
@@ -306,13 +346,12 @@ public class BasicFiscalDevice implements FiscalDevice
 		boolean unexpectedPacket = false;
 
 		// Handle a previous response.
-		if (in.available() != 0)
+		if (available() != 0)
 		{
 			for (;;)
 			{
-				int sn;
-				try { sn = receivePacket(response, requestToReport); }
-				catch (FiscalPortTimeoutException e) { break; }
+				int sn = receivePacket(response, requestToReport);
+				if (sn == TIMEOUT) break;
 				receivedUnexpectedPacket(sn, response);
 				unexpectedPacket = true;
 			}
@@ -341,38 +380,33 @@ public class BasicFiscalDevice implements FiscalDevice
 			int x;
 			for (;;)
 			{
-				try { x = in.read(); }
-				catch (FiscalPortTimeoutException e) { continue send; }
-				if (x != ASCII_DC3) break;
+				if ((x = read()) == TIMEOUT) continue send;
+				if (x != HasarFrameCodec.ASCII_DC3) break;
 				receivedLongRequestWarning();
 			}
-			if (x == ASCII_NAK) continue send;
-			if (REQUIRE_ACKNOWLEDGE || (x != ASCII_STX && x != ASCII_DC2 && x != ASCII_DC4))
+			if (x == HasarFrameCodec.ASCII_NAK) continue send;
+			if (REQUIRE_ACKNOWLEDGE || (x != HasarFrameCodec.ASCII_STX && x != HasarFrameCodec.ASCII_DC2 && x != HasarFrameCodec.ASCII_DC4))
 			{
-				if (x != ASCII_ACK)
+				if (x != HasarFrameCodec.ASCII_ACK)
 				{
 					// WARNING: Will reissue requests.
-					int sn;
-					try { sn = receivePacket(response, x, requestToReport); }
-					catch (FiscalPortTimeoutException e) { continue send; }
+					int sn = receivePacket(response, x, requestToReport);
+					if (sn == TIMEOUT) continue send;
 					for (;;)
 					{
 						if (sn == serialNumber) receivedSerialNumber = 0;
 						receivedUnexpectedPacket(sn, response);
 						if (MAX_TRIES_EXTENSION && !unexpectedPacket && tries >= maxTries) tries--;
 						unexpectedPacket = true;
-						try { sn = receivePacket(response, requestToReport); }
-						catch (FiscalPortTimeoutException e) { continue send; }
+						if ((sn = receivePacket(response, requestToReport)) == TIMEOUT) continue send;
 					}
 				}
-				try { x = in.read(); }
-				catch (FiscalPortTimeoutException e) { continue send; }
+				if ((x = read()) == TIMEOUT) continue send;
 			}
 
 			// Receive response and handle acknowledgement.
-			int sn;
-			try { sn = receivePacket(response, x, requestToReport); }
-			catch (FiscalPortTimeoutException e) { continue send; }
+			int sn = receivePacket(response, x, requestToReport);
+			if (sn == TIMEOUT) continue send;
 			if (sn != serialNumber)
 			{
 				// WARNING: Will reissue requests.
@@ -381,8 +415,7 @@ public class BasicFiscalDevice implements FiscalDevice
 					receivedUnexpectedPacket(sn, response);
 					if (MAX_TRIES_EXTENSION && !unexpectedPacket && tries >= maxTries) tries--;
 					unexpectedPacket = true;
-					try { sn = receivePacket(response, requestToReport); }
-					catch (FiscalPortTimeoutException e) { continue send; }
+					if ((sn = receivePacket(response, requestToReport)) == TIMEOUT) continue send;
 					if (sn == serialNumber) receivedSerialNumber = 0;
 				}
 			}
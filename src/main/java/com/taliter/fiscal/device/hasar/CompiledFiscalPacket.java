@@ -0,0 +1,99 @@
+package com.taliter.fiscal.device.hasar;
+
+/**
+A FlatFiscalPacket that keeps its encoded frame between requests.
+
+<p>The frame is built on first use. Afterwards only the serial number is patched, along with any field rewritten with
+a value of the same length, and the checksum is adjusted for the patched bytes instead of being recomputed over the
+whole frame. Changing the number of fields or the length of a field causes the frame to be built again.
+This makes repeated requests such as status polls almost free to format.
+
+<p>BasicFiscalDevice sends the frame returned by getFrame() as is. The underlying data must not be modified directly.
+*/
+public class CompiledFiscalPacket extends FlatFiscalPacket
+{
+	private byte[] frame;
+	private boolean frameExtendedProtocol;
+	private int frameChecksum;	// Checksum of the frame with a serial number of 0.
+	private int dirtyStart = Integer.MAX_VALUE;	// Range of the data patched since the frame was built.
+	private int dirtyEnd;
+
+	public CompiledFiscalPacket(String encoding, int baseRolloverYear) { super(encoding, baseRolloverYear); }
+	public CompiledFiscalPacket(PacketCharset charset, int baseRolloverYear) { super(charset, baseRolloverYear); }
+
+	public Object clone()
+	{
+		CompiledFiscalPacket p = (CompiledFiscalPacket) super.clone();
+		p.frame = null;
+		return p;
+	}
+
+	/** Get the frame of this packet with the specified serial number.
+	A reference to an internal array is returned, which is valid until the packet is modified or this method is called again. */
+	public byte[] getFrame(int serialNumber, boolean extendedProtocol)
+	{
+		byte[] f = frame;
+		if (f == null || frameExtendedProtocol != extendedProtocol)
+		{
+			f = HasarFrameCodec.encode(this, 0, extendedProtocol);
+			int cs = 0;
+			for (int i = f.length - 4; i < f.length; i++) cs = (cs << 4) | Character.digit((char) f[i], 0x10);
+			frame = f;
+			frameExtendedProtocol = extendedProtocol;
+			frameChecksum = cs;
+		}
+		else if (dirtyStart < dirtyEnd)
+		{
+			byte[] d = getData();
+			int h = extendedProtocol ? 3 : 2;
+			int cs = frameChecksum;
+			for (int p = dirtyStart; p < dirtyEnd; p++)
+			{
+				int x = d[p] & 0xFF;
+				int o = f[h + p] & 0xFF;
+				if (x == o) continue;
+				if (x < 0x20)
+				{
+					// Let the full encoding report the invalid value.
+					frame = null;
+					return getFrame(serialNumber, extendedProtocol);
+				}
+				f[h + p] = (byte) x;
+				cs += x - o;
+			}
+			frameChecksum = cs;
+		}
+		dirtyStart = Integer.MAX_VALUE;
+		dirtyEnd = 0;
+		f[1] = (byte) serialNumber;
+		int cs = frameChecksum + serialNumber;
+		int p = f.length - 4;
+		for (int k = 12; k >= 0; k -= 4) f[p++] = (byte) Character.toUpperCase(Character.forDigit((cs >> k) & 0xF, 0x10));
+		return f;
+	}
+
+	public void clear()
+	{
+		frame = null;
+		super.clear();
+	}
+
+	public void setSize(int size)
+	{
+		if (size != getSize()) frame = null;
+		super.setSize(size);
+	}
+
+	protected int resize(int field, int length)
+	{
+		boolean patch = frame != null && field >= 0 && field < getSize() && getLength(field) == length;
+		int p = super.resize(field, length);
+		if (!patch) frame = null;
+		else
+		{
+			if (p < dirtyStart) dirtyStart = p;
+			if (p + length > dirtyEnd) dirtyEnd = p + length;
+		}
+		return p;
+	}
+}
@@ -0,0 +1,261 @@
+package com.taliter.fiscal.device.hasar;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+A compact, versioned binary encoding of HasarFiscalPacket objects, for journaling and for passing packets between processes.
+
+<p>An encoded packet consists of a version byte, a packet type byte, the base roll-over year, the encoding name,
+the number of fields and the fields, each one preceded by its length. Numbers are written as unsigned varints
+(7 bits per byte, least significant first) and the encoding name is written as its length plus 1 followed by ISO-8859-1
+bytes, with 0 standing for null. Decoded packets are HasarFiscalPacket, FlatFiscalPacket or CompiledFiscalPacket
+objects, according to the type of the encoded packet; packets of other subclasses are decoded as FlatFiscalPacket objects.
+
+<p>HasarFiscalPacket and its subclasses in this package are serialized in this form through an Externalizable proxy.
+*/
+public final class FiscalPacketCodec
+{
+	/** The version of the encoding written. */
+	public static final int VERSION = 1;
+
+	private static final int TYPE_HASAR = 0;
+	private static final int TYPE_FLAT = 1;
+	private static final int TYPE_COMPILED = 2;
+
+	private FiscalPacketCodec() {}
+
+	// ByteBuffer
+
+	/** Get the number of bytes a packet is encoded to. */
+	public static int getEncodedLength(HasarFiscalPacket packet)
+	{
+		String e = packet.getEncoding();
+		int size = packet.getSize();
+		int l = 2 + getVarintLength(packet.getBaseRolloverYear()) + getVarintLength(e != null ? e.length() + 1 : 0) + (e != null ? e.length() : 0) + getVarintLength(size);
+		for (int i = 0; i < size; i++)
+		{
+			int fl = packet.getLength(i);
+			l += getVarintLength(fl) + fl;
+		}
+		return l;
+	}
+
+	/** Encode a packet into a buffer.
+	@throws BufferOverflowException if the buffer has less than getEncodedLength() bytes remaining. */
+	public static void encode(HasarFiscalPacket packet, ByteBuffer buffer)
+	{
+		if (buffer.remaining() < getEncodedLength(packet)) throw new BufferOverflowException();
+		buffer.put((byte) VERSION);
+		buffer.put((byte) getType(packet));
+		putVarint(buffer, packet.getBaseRolloverYear());
+		String e = packet.getEncoding();
+		if (e == null) putVarint(buffer, 0);
+		else
+		{
+			int l = e.length();
+			putVarint(buffer, l + 1);
+			for (int i = 0; i < l; i++) buffer.put((byte) e.charAt(i));
+		}
+		int size = packet.getSize();
+		putVarint(buffer, size);
+		for (int i = 0; i < size; i++)
+		{
+			int fl = packet.getLength(i);
+			putVarint(buffer, fl);
+			buffer.put(packet.getFieldArray(i), packet.getFieldOffset(i), fl);
+		}
+	}
+
+	/** Decode a packet from a buffer.
+	@throws BufferUnderflowException if the buffer ends before the packet.
+	@throws IllegalArgumentException if the buffer does not hold an encoded packet of a known version. */
+	public static HasarFiscalPacket decode(ByteBuffer buffer)
+	{
+		int version = buffer.get() & 0xFF;
+		if (version != VERSION) throw new IllegalArgumentException("Unknown version (" + version + ")");
+		int type = buffer.get() & 0xFF;
+		int baseRolloverYear = getVarint(buffer);
+		int el = getVarint(buffer);
+		String e = null;
+		if (el != 0)
+		{
+			char[] c = new char[el - 1];
+			for (int i = 0; i < c.length; i++) c[i] = (char) (buffer.get() & 0xFF);
+			e = new String(c);
+		}
+		HasarFiscalPacket p = createPacket(type, e, baseRolloverYear);
+		int size = getVarint(buffer);
+		byte[] b = null;
+		for (int i = 0; i < size; i++)
+		{
+			int fl = getVarint(buffer);
+			if (fl > buffer.remaining()) throw new BufferUnderflowException();
+			if (buffer.hasArray())
+			{
+				p.setCopy(i, buffer.array(), buffer.arrayOffset() + buffer.position(), fl);
+				buffer.position(buffer.position() + fl);
+			}
+			else
+			{
+				if (b == null || b.length < fl) b = new byte[Math.max(fl, 64)];
+				buffer.get(b, 0, fl);
+				p.setCopy(i, b, 0, fl);
+			}
+		}
+		return p;
+	}
+
+	// Streams
+
+	/** Write a packet to a stream. */
+	public static void write(HasarFiscalPacket packet, DataOutput out) throws IOException
+	{
+		out.write(VERSION);
+		out.write(getType(packet));
+		writeVarint(out, packet.getBaseRolloverYear());
+		String e = packet.getEncoding();
+		if (e == null) writeVarint(out, 0);
+		else
+		{
+			writeVarint(out, e.length() + 1);
+			out.writeBytes(e);
+		}
+		int size = packet.getSize();
+		writeVarint(out, size);
+		for (int i = 0; i < size; i++)
+		{
+			int fl = packet.getLength(i);
+			writeVarint(out, fl);
+			out.write(packet.getFieldArray(i), packet.getFieldOffset(i), fl);
+		}
+	}
+
+	/** Read a packet from a stream.
+	@throws StreamCorruptedException if the stream does not hold an encoded packet of a known version. */
+	public static HasarFiscalPacket read(DataInput in) throws IOException
+	{
+		int version = in.readUnsignedByte();
+		if (version != VERSION) throw new StreamCorruptedException("Unknown version (" + version + ")");
+		int type = in.readUnsignedByte();
+		int baseRolloverYear = readVarint(in);
+		int el = readVarint(in);
+		String e = null;
+		if (el != 0)
+		{
+			char[] c = new char[el - 1];
+			for (int i = 0; i < c.length; i++) c[i] = (char) in.readUnsignedByte();
+			e = new String(c);
+		}
+		HasarFiscalPacket p;
+		try { p = createPacket(type, e, baseRolloverYear); }
+		catch (IllegalArgumentException x) { throw new StreamCorruptedException(x.getMessage()); }
+		int size = readVarint(in);
+		for (int i = 0; i < size; i++)
+		{
+			byte[] f = new byte[readVarint(in)];
+			in.readFully(f);
+			p.set(i, f);
+		}
+		return p;
+	}
+
+	// Varints
+
+	/** Get the number of bytes of an unsigned varint. */
+	public static int getVarintLength(int x)
+	{
+		int l = 1;
+		while ((x >>>= 7) != 0) l++;
+		return l;
+	}
+
+	/** Put an unsigned varint into a buffer. */
+	public static void putVarint(ByteBuffer buffer, int x)
+	{
+		while ((x & ~0x7F) != 0)
+		{
+			buffer.put((byte) (x & 0x7F | 0x80));
+			x >>>= 7;
+		}
+		buffer.put((byte) x);
+	}
+
+	/** Get an unsigned varint from a buffer. */
+	public static int getVarint(ByteBuffer buffer)
+	{
+		int x = 0;
+		for (int s = 0; s < 35; s += 7)
+		{
+			int b = buffer.get();
+			x |= (b & 0x7F) << s;
+			if (b >= 0) return x;
+		}
+		throw new IllegalArgumentException("Invalid varint");
+	}
+
+	/** Write an unsigned varint to a stream. */
+	public static void writeVarint(DataOutput out, int x) throws IOException
+	{
+		while ((x & ~0x7F) != 0)
+		{
+			out.write(x & 0x7F | 0x80);
+			x >>>= 7;
+		}
+		out.write(x);
+	}
+
+	/** Read an unsigned varint from a stream. */
+	public static int readVarint(DataInput in) throws IOException
+	{
+		int x = 0;
+		for (int s = 0; s < 35; s += 7)
+		{
+			int b = in.readByte();
+			x |= (b & 0x7F) << s;
+			if (b >= 0) return x;
+		}
+		throw new StreamCorruptedException("Invalid varint");
+	}
+
+	/** Returns true if the class of a packet is encoded with its type. */
+	static boolean isEncodedType(HasarFiscalPacket packet)
+	{
+		Class c = packet.getClass();
+		return c == HasarFiscalPacket.class || c == FlatFiscalPacket.class || c == CompiledFiscalPacket.class;
+	}
+
+	private static int getType(HasarFiscalPacket packet)
+	{
+		if (packet instanceof CompiledFiscalPacket) return TYPE_COMPILED;
+		if (packet instanceof FlatFiscalPacket) return TYPE_FLAT;
+		return TYPE_HASAR;
+	}
+
+	private static HasarFiscalPacket createPacket(int type, String encoding, int baseRolloverYear)
+	{
+		switch (type)
+		{
+			case TYPE_HASAR: return new HasarFiscalPacket(encoding, baseRolloverYear);
+			case TYPE_FLAT: return new FlatFiscalPacket(encoding, baseRolloverYear);
+			case TYPE_COMPILED: return new CompiledFiscalPacket(encoding, baseRolloverYear);
+			default: throw new IllegalArgumentException("Unknown packet type (" + type + ")");
+		}
+	}
+
+	/** The serialized form of packets. */
+	static final class Proxy implements Externalizable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private HasarFiscalPacket packet;
+
+		public Proxy() {}
+		Proxy(HasarFiscalPacket packet) { this.packet = packet; }
+
+		public void writeExternal(ObjectOutput out) throws IOException { write(packet, out); }
+		public void readExternal(ObjectInput in) throws IOException { packet = read(in); }
+
+		private Object readResolve() { return packet; }
+	}
+}
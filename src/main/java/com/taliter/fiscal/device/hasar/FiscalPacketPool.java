@@ -0,0 +1,109 @@
+package com.taliter.fiscal.device.hasar;
+
+import java.io.*;
+
+import com.taliter.fiscal.device.*;
+
+/**
+A pool of FlatFiscalPacket objects, so that packets and their field storage are reused instead of reallocated.
+
+<p>Acquired packets are empty. Released packets are cleared and kept for later use, up to the maximum size of
+the pool; packets that were not created by the pool are ignored. A packet must not be used after releasing it.
+Pools are thread-safe.
+*/
+public class FiscalPacketPool
+{
+	private final String encoding;
+	private final PacketCharset charset;
+	private final int baseRolloverYear;
+	private final FlatFiscalPacket[] packets;
+	private int size;
+	private int created;
+
+	/** Create a pool of packets using the specified encoding and base roll-over year, keeping at most maxSize released packets. */
+	public FiscalPacketPool(String encoding, int baseRolloverYear, int maxSize)
+	{
+		if (baseRolloverYear < 0 || maxSize < 0) throw new IllegalArgumentException();
+		PacketCharset c = null;
+		if (encoding != null)
+		{
+			try { c = PacketCharset.forName(encoding); }
+			catch (UnsupportedEncodingException e) {}	// Reported when strings are used.
+		}
+		this.encoding = encoding;
+		charset = c;
+		this.baseRolloverYear = baseRolloverYear;
+		packets = new FlatFiscalPacket[maxSize];
+	}
+
+	/** Get the encoding of the packets. */
+	public String getEncoding() { return encoding; }
+
+	/** Get the base roll-over year of the packets. */
+	public int getBaseRolloverYear() { return baseRolloverYear; }
+
+	/** Get the maximum number of released packets kept. */
+	public int getMaxSize() { return packets.length; }
+
+	/** Get the number of released packets kept. */
+	public synchronized int getSize() { return size; }
+
+	/** Get the number of packets created by the pool. */
+	public synchronized int getCreated() { return created; }
+
+	/** Get an empty packet from the pool, creating it if the pool is empty. */
+	public FlatFiscalPacket acquire()
+	{
+		synchronized (this)
+		{
+			if (size != 0)
+			{
+				FlatFiscalPacket p = packets[--size];
+				packets[size] = null;
+				return p;
+			}
+			created++;
+		}
+		return charset != null ? new PooledPacket(this, charset, baseRolloverYear) : new PooledPacket(this, encoding, baseRolloverYear);
+	}
+
+	/** Return a packet to the pool. Null and packets not created by this pool are ignored. */
+	public void release(FiscalPacket packet)
+	{
+		if (!(packet instanceof PooledPacket) || ((PooledPacket) packet).pool != this) return;
+		FlatFiscalPacket p = (FlatFiscalPacket) packet;
+		p.clear();
+		synchronized (this)
+		{
+			if (size == packets.length) return;
+			for (int i = 0; i < size; i++) if (packets[i] == p) return;	// Already released.
+			packets[size++] = p;
+		}
+	}
+
+	private static class PooledPacket extends FlatFiscalPacket
+	{
+		private transient FiscalPacketPool pool;
+
+		PooledPacket(FiscalPacketPool pool, String encoding, int baseRolloverYear)
+		{
+			super(encoding, baseRolloverYear);
+			this.pool = pool;
+		}
+
+		PooledPacket(FiscalPacketPool pool, PacketCharset charset, int baseRolloverYear)
+		{
+			super(charset, baseRolloverYear);
+			this.pool = pool;
+		}
+
+		public Object clone()
+		{
+			PooledPacket p = (PooledPacket) super.clone();
+			p.pool = null;	// Clones do not belong to the pool.
+			return p;
+		}
+
+		protected Object writeReplace() throws ObjectStreamException { return new FiscalPacketCodec.Proxy(this); }	// Read as a FlatFiscalPacket.
+	}
+}
@@ -0,0 +1,354 @@
+package com.taliter.fiscal.device.hasar;
+
+import java.nio.*;
+
+/**
+A HasarFiscalPacket that stores all its fields in a single growable byte array.
+
+<p>Fields are laid out as in a frame, separated by FS bytes, and an array of field end offsets indexes them.
+Rewriting a field with a value of the same length is done in place, and clone() and equals() work on the whole
+array at once. HasarFrameCodec copies the contents of these packets to frames in one step.
+
+<p>Unlike other FiscalPacket implementations, these packets never keep references to passed arrays: set() copies
+the passed value. get() and getString() decode fields only when called, keeping the result until the field is changed,
+so received responses cost little beyond the fields actually used. Arrays returned by get() must not be modified.
+*/
+public class FlatFiscalPacket extends HasarFiscalPacket
+{
+	private byte[] data;
+	private int length;
+	private int[] ends;	// End offset (exclusive) of each field.
+	private int size;
+	private transient byte[][] values;	// Values returned by get(), kept until fields change.
+	private transient String[] strings;	// Values returned by getString(), kept until fields change.
+
+	public FlatFiscalPacket(String encoding, int baseRolloverYear) { this(encoding, baseRolloverYear, 64, 8); }
+	public FlatFiscalPacket(PacketCharset charset, int baseRolloverYear) { this(charset, baseRolloverYear, 64, 8); }
+	public FlatFiscalPacket(String encoding, int baseRolloverYear, int capacity, int fieldCapacity)
+	{
+		super(encoding, baseRolloverYear);
+		data = new byte[Math.max(capacity, 1)];
+		ends = new int[Math.max(fieldCapacity, 1)];
+	}
+	public FlatFiscalPacket(PacketCharset charset, int baseRolloverYear, int capacity, int fieldCapacity)
+	{
+		super(charset, baseRolloverYear);
+		data = new byte[Math.max(capacity, 1)];
+		ends = new int[Math.max(fieldCapacity, 1)];
+	}
+
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof FlatFiscalPacket)) return super.equals(o);
+		if (this == o) return true;
+		FlatFiscalPacket p = (FlatFiscalPacket) o;
+		if (size != p.size || length != p.length) return false;
+		for (int i = 0; i < size; i++) if (ends[i] != p.ends[i]) return false;
+		for (int i = 0; i < length; i++) if (data[i] != p.data[i]) return false;
+		return true;
+	}
+
+	public int hashCode()
+	{
+		// As AbstractFiscalPacket.hashCode(), without decoding the fields.
+		int h = 1;
+		for (int i = 0, p = 0; i < size; i++)
+		{
+			int fh = 1;
+			for (int e = ends[i]; p < e; p++) fh = 31 * fh + data[p];
+			h = 31 * h + fh;
+			p++;	// Field separator.
+		}
+		return h;
+	}
+
+	public Object clone()
+	{
+		FlatFiscalPacket p = (FlatFiscalPacket) super.clone();
+		p.data = new byte[Math.max(length, 1)];
+		System.arraycopy(data, 0, p.data, 0, length);
+		p.ends = new int[Math.max(size, 1)];
+		System.arraycopy(ends, 0, p.ends, 0, size);
+		p.values = null;
+		p.strings = null;
+		return p;
+	}
+
+	// Contents
+
+	/** Get the underlying array. Fields are stored from offset 0 to getDataLength(), separated by FS bytes.
+	A reference to the array is returned (the array is not copied) and it may be replaced when the packet grows. */
+	public byte[] getData() { return data; }
+	/** Get the number of bytes used in the underlying array. */
+	public int getDataLength() { return length; }
+
+	/** Get the offset of a field in the underlying array. */
+	public int getOffset(int field)
+	{
+		if (field < 0 || field >= size) throw new IndexOutOfBoundsException();
+		return field != 0 ? ends[field - 1] + 1 : 0;
+	}
+
+	/** Put the fields, separated by FS bytes, into a buffer. */
+	public void writeTo(ByteBuffer buffer) { buffer.put(data, 0, length); }
+
+	/** Add an empty field to the end of the packet. Used with appendByte() to receive packets. */
+	public void appendField() { addField(0); }
+
+	/** Append a byte to the last field of the packet. */
+	public void appendByte(int x)
+	{
+		if (size == 0) throw new IndexOutOfBoundsException();
+		if (length == data.length) ensureCapacity(length + 1);
+		data[length++] = (byte) x;
+		ends[size - 1] = length;
+		forget(size - 1);
+	}
+
+	// Size
+
+	public void clear()
+	{
+		forgetFrom(0);
+		size = 0;
+		length = 0;
+	}
+
+	public void setSize(int size)
+	{
+		if (size < 0) throw new IndexOutOfBoundsException();
+		if (size < this.size)
+		{
+			forgetFrom(size);
+			this.size = size;
+			length = size != 0 ? ends[size - 1] : 0;
+		}
+		else while (this.size < size) addField(0);
+	}
+
+	public int getSize() { return size; }
+
+	// Fields
+
+	public void clear(int field) { resize(field, 0); }
+
+	public void set(int field, byte[] value)
+	{
+		if (value == null) throw new NullPointerException();
+		setCopy(field, value, 0, value.length);
+	}
+
+	public byte[] get(int field)
+	{
+		byte[] v = values != null && field >= 0 && field < values.length ? values[field] : null;
+		if (v == null)
+		{
+			v = getCopy(field);
+			if (values == null || values.length < size) values = (byte[][]) grow(values, new byte[size][]);
+			values[field] = v;
+		}
+		return v;
+	}
+
+	public int getLength(int field)
+	{
+		if (field < 0 || field >= size) throw new IndexOutOfBoundsException();
+		return ends[field] - (field != 0 ? ends[field - 1] + 1 : 0);
+	}
+
+	// Field Copies
+
+	public void setCopy(int field, byte[] value, int offset, int length)
+	{
+		if (offset < 0 || length < 0 || offset > value.length - length) throw new ArrayIndexOutOfBoundsException();
+		int p = resize(field, length);
+		System.arraycopy(value, offset, data, p, length);
+	}
+
+	public byte[] getCopy(int field)
+	{
+		int p = getOffset(field);
+		int l = ends[field] - p;
+		byte[] x = new byte[l];
+		System.arraycopy(data, p, x, 0, l);
+		return x;
+	}
+
+	public int getCopy(int field, byte[] value, int offset, int length)
+	{
+		int p = getOffset(field);
+		int l = ends[field] - p;
+		System.arraycopy(data, p, value, offset, length >= l ? l : length);
+		return l;
+	}
+
+	// String Fields
+
+	public void setString(int field, String value) { setString(field, value, STYLE_NORMAL); }
+
+	public void setString(int field, String value, int style)
+	{
+		// Encode directly into the buffer when the encoding is single-byte.
+		PacketCharset c = getCharset();
+		if (c.isSingleByte())
+		{
+			int h = style != STYLE_NORMAL ? 1 : 0;
+			if (h != 0 && (style < 0 || style > 15)) throw new IllegalArgumentException();
+			int p = resize(field, value.length() + h);
+			if (c.encode(value, data, p + h) >= 0)
+			{
+				if (h != 0) data[p] = (byte) (0xF0 | style);
+				return;
+			}
+		}
+		super.setString(field, value, style);
+	}
+
+	public String getString(int field)
+	{
+		String v = strings != null && field >= 0 && field < strings.length ? strings[field] : null;
+		if (v == null)
+		{
+			int p = getOffset(field);
+			int l = ends[field] - p;
+			if (l != 0 && (data[p] & 0xF0) == 0xF0) { p++; l--; }
+			v = getCharset().decode(data, p, l);
+			if (strings == null || strings.length < size) strings = (String[]) grow(strings, new String[size]);
+			strings[field] = v;
+		}
+		return v;
+	}
+
+	public int getStringStyle(int field)
+	{
+		int p = getOffset(field);
+		return ends[field] == p || (data[p] & 0xF0) != 0xF0 ? STYLE_NORMAL : data[p] & 0xF;
+	}
+
+	// Numeric Fields
+
+	protected byte[] getFieldArray(int field)
+	{
+		getOffset(field);
+		return data;
+	}
+
+	protected int getFieldOffset(int field) { return getOffset(field); }
+
+	protected void setASCIIDecimal(int field, long unscaled, int scale)
+	{
+		int p = resize(field, getASCIIDecimalLength(unscaled, scale));
+		putASCIIDecimal(data, p, unscaled, scale);
+	}
+
+	protected void setASCIIDigits(int field, int value, int digits)
+	{
+		int p = resize(field, digits);
+		putASCIIDigits(data, p, value, digits);
+	}
+
+	// Special Numeric Fields
+
+	public void setByte(int field, int value)
+	{
+		if (value < 0 || value > 0xFF) throw new IllegalArgumentException();
+		int p = resize(field, 1);
+		data[p] = (byte) value;
+	}
+
+	public int getByte(int field)
+	{
+		int p = getOffset(field);
+		if (ends[field] - p != 1) throw new NumberFormatException();
+		return data[p] & 0xFF;
+	}
+
+	public void setHex16(int field, int value)
+	{
+		if (value < 0 || value > 0xFFFF) throw new IllegalArgumentException();
+		int p = resize(field, 4);
+		for (int k = 12; k >= 0; k -= 4) data[p++] = (byte) Character.toUpperCase(Character.forDigit((value >> k) & 0xF, 0x10));
+	}
+
+	public int getHex16(int field)
+	{
+		int p = getOffset(field);
+		if (ends[field] - p != 4) throw new NumberFormatException();
+		int value = 0;
+		for (int k = 12; k >= 0; k -= 4)
+		{
+			int d = Character.digit((char) (data[p++] & 0xFF), 0x10);
+			if (d < 0) throw new NumberFormatException();
+			value |= (d << k);
+		}
+		return value;
+	}
+
+	// Storage
+
+	/** Resize a field, growing the packet if needed.
+	The contents of the field are undefined afterwards unless its length was not changed.
+	@return the offset of the field in the underlying array. */
+	protected int resize(int field, int length)
+	{
+		if (field < 0) throw new IndexOutOfBoundsException();
+		if (field >= size)
+		{
+			while (size < field) addField(0);
+			return addField(length);
+		}
+		forget(field);
+		int p = field != 0 ? ends[field - 1] + 1 : 0;
+		int delta = length - (ends[field] - p);
+		if (delta != 0)
+		{
+			int e = ends[field];
+			ensureCapacity(this.length + delta);
+			System.arraycopy(data, e, data, e + delta, this.length - e);
+			this.length += delta;
+			for (int i = field; i < size; i++) ends[i] += delta;
+		}
+		return p;
+	}
+
+	private int addField(int length)
+	{
+		int p = size != 0 ? this.length + 1 : 0;
+		ensureCapacity(p + length);
+		if (size != 0) data[this.length] = (byte) HasarFrameCodec.ASCII_FS;
+		if (size == ends.length)
+		{
+			int[] e = new int[size * 2];
+			System.arraycopy(ends, 0, e, 0, size);
+			ends = e;
+		}
+		ends[size++] = this.length = p + length;
+		return p;
+	}
+
+	private void forget(int field)
+	{
+		if (values != null && field < values.length) values[field] = null;
+		if (strings != null && field < strings.length) strings[field] = null;
+	}
+
+	private void forgetFrom(int field)
+	{
+		if (values != null) for (int i = field; i < values.length; i++) values[i] = null;
+		if (strings != null) for (int i = field; i < strings.length; i++) strings[i] = null;
+	}
+
+	private static Object[] grow(Object[] a, Object[] b)
+	{
+		if (a != null) System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity <= data.length) return;
+		byte[] d = new byte[Math.max(capacity, data.length * 2)];
+		System.arraycopy(data, 0, d, 0, length);
+		data = d;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.*;
 
 import com.taliter.fiscal.device.*;
 import com.taliter.fiscal.port.*;
+import com.taliter.fiscal.util.*;
 
 /** A FiscalDevice implementation used to communicate with Hasar fiscal devices such as fiscal printers. */
 public class HasarFiscalDevice extends BasicFiscalDevice
@@ -13,12 +14,19 @@ public class HasarFiscalDevice extends BasicFiscalDevice
 
 	private boolean handleExtendedProtocol;
 	private final FiscalPacket REQ_STATPRN;
+	private final FiscalPacket REQ_STATUS_REQUEST;
 
 	public HasarFiscalDevice(FiscalPort port, int timeout, boolean extendedProtocol, boolean handleExtendedProtocol, int maxTries, String encoding, int baseRolloverYear)
 	{
-		super(port, timeout, extendedProtocol, maxTries, encoding, baseRolloverYear);
+		this(port, timeout, extendedProtocol, handleExtendedProtocol, maxTries, encoding, baseRolloverYear, Clock.SYSTEM);
+	}
+
+	public HasarFiscalDevice(FiscalPort port, int timeout, boolean extendedProtocol, boolean handleExtendedProtocol, int maxTries, String encoding, int baseRolloverYear, Clock clock)
+	{
+		super(port, timeout, extendedProtocol, maxTries, encoding, baseRolloverYear, clock);
 		this.handleExtendedProtocol = handleExtendedProtocol;
-		(REQ_STATPRN = createFiscalPacket()).setCommandCode(CMD_STATPRN);
+		(REQ_STATPRN = createCompiledFiscalPacket()).setCommandCode(CMD_STATPRN);
+		(REQ_STATUS_REQUEST = createCompiledFiscalPacket()).setCommandCode(CMD_STATUS_REQUEST);
 	}
 
 	public void open() throws Exception
@@ -39,12 +47,12 @@ public class HasarFiscalDevice extends BasicFiscalDevice
 		eventHandler = null;	// Suppress event generation.
 		try
 		{
-			FiscalPacket request = createFiscalPacket();
-			request.setCommandCode(CMD_STATUS_REQUEST);
-			FiscalPacket response = createFiscalPacket();
+			FiscalPacket request = REQ_STATUS_REQUEST;
+			FiscalPacket response = acquireFiscalPacket();
 			basicExecute(request, response, request);	// The first try may hit the last used serial number
 			basicExecute(request, response, request);	// and get its corresponding response.
 			if (CMD_STATUS_REQUEST != response.getCommandCode()) throw new InvalidFiscalResponseException(request, response);	// Will not tolerate STATPRN here.
+			releaseFiscalPacket(response);	// Not released on failure, as exceptions keep it.
 		}
 		finally { eventHandler = h; }
 	}
@@ -90,11 +98,11 @@ public class HasarFiscalDevice extends BasicFiscalDevice
 		long time;
 		if (eventHandler != null)
 		{
-			long startTime = System.currentTimeMillis();
+			long startTime = getClock().currentTimeMillis();
 			retry = eventHandler.onExtendedStatus(this, request, status);
 			if (retry)
 			{
-				time = System.currentTimeMillis() - startTime;
+				time = getClock().currentTimeMillis() - startTime;
 				int timeout = getTimeout();
 				if (time < timeout) time = timeout - time;
 				else time = 0;
@@ -108,7 +116,7 @@ public class HasarFiscalDevice extends BasicFiscalDevice
 		}
 		if (time > 0)
 		{
-			try { Thread.sleep(time); }
+			try { getClock().sleep(time); }
 			catch (InterruptedException e) { Thread.currentThread().interrupt(); }
 		}
 		return retry;
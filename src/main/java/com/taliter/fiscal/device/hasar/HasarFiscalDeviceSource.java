@@ -1,7 +1,10 @@
 package com.taliter.fiscal.device.hasar;
 
+import java.io.*;
+
 import com.taliter.fiscal.device.*;
 import com.taliter.fiscal.port.*;
+import com.taliter.fiscal.util.*;
 
 /**
 A HasarFiscalDevice factory.
@@ -14,10 +17,20 @@ extendedProtocol = false;<br>
 handleExtendedProtocol = true;<br>
 maxTries = 3;<br>
 encoding = "Cp437";	// MS-DOS United States, Australia, New Zealand, South Africa.<br>
-baseRolloverYear = 1997;</code>
+baseRolloverYear = 1997;<br>
+lazyResponses = false;<br>
+clock = Clock.SYSTEM;	// Not serialized.</code>
+
+<p>Device sources are serialized in a compact, versioned form. The port source is serialized as an object.
 */
-public class HasarFiscalDeviceSource implements FiscalDeviceSource
+public class HasarFiscalDeviceSource implements FiscalDeviceSource, Externalizable
 {
+	private static final int EXTERNAL_VERSION = 1;
+	private static final int FLAG_EXTENDED_PROTOCOL = 0x01;
+	private static final int FLAG_HANDLE_EXTENDED_PROTOCOL = 0x02;
+	private static final int FLAG_LAZY_RESPONSES = 0x04;
+	private static final int FLAG_ENCODING = 0x08;	// Encoding not null.
+
 	private FiscalPortSource portSource;
 	private int timeout = 1200;	// In milliseconds.
 	private boolean extendedProtocol = false;
@@ -27,6 +40,8 @@ public class HasarFiscalDeviceSource implements FiscalDeviceSource
 	//private String encoding = "Cp850";	// MS-DOS Latin-1.
 	//private String encoding = "ISO8859_1";	// ISO 8859-1, Latin alphabet No. 1.
 	private int baseRolloverYear = 1997;
+	private boolean lazyResponses = false;
+	private transient Clock clock;
 
 	public HasarFiscalDeviceSource() {}
 	public HasarFiscalDeviceSource(FiscalPortSource portSource) { this.portSource = portSource; }
@@ -41,6 +56,33 @@ public class HasarFiscalDeviceSource implements FiscalDeviceSource
 		return ds;
 	}
 
+	public void writeExternal(ObjectOutput out) throws IOException
+	{
+		out.write(EXTERNAL_VERSION);
+		out.write((extendedProtocol ? FLAG_EXTENDED_PROTOCOL : 0) | (handleExtendedProtocol ? FLAG_HANDLE_EXTENDED_PROTOCOL : 0)
+				| (lazyResponses ? FLAG_LAZY_RESPONSES : 0) | (encoding != null ? FLAG_ENCODING : 0));
+		FiscalPacketCodec.writeVarint(out, timeout);
+		FiscalPacketCodec.writeVarint(out, maxTries);
+		FiscalPacketCodec.writeVarint(out, baseRolloverYear);
+		if (encoding != null) out.writeUTF(encoding);
+		out.writeObject(portSource);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+	{
+		int version = in.readUnsignedByte();
+		if (version != EXTERNAL_VERSION) throw new StreamCorruptedException("Unknown version (" + version + ")");
+		int flags = in.readUnsignedByte();
+		extendedProtocol = (flags & FLAG_EXTENDED_PROTOCOL) != 0;
+		handleExtendedProtocol = (flags & FLAG_HANDLE_EXTENDED_PROTOCOL) != 0;
+		lazyResponses = (flags & FLAG_LAZY_RESPONSES) != 0;
+		timeout = FiscalPacketCodec.readVarint(in);
+		maxTries = FiscalPacketCodec.readVarint(in);
+		baseRolloverYear = FiscalPacketCodec.readVarint(in);
+		encoding = (flags & FLAG_ENCODING) != 0 ? in.readUTF() : null;
+		portSource = (FiscalPortSource) in.readObject();
+	}
+
 	public void setPortSource(FiscalPortSource portSource) { this.portSource = portSource; }
 	public FiscalPortSource getPortSource() { return portSource; }
 
@@ -76,18 +118,27 @@ public class HasarFiscalDeviceSource implements FiscalDeviceSource
 	/** Get the base roll-over year to use for dates in packets. Valid years are from baseRolloverYear to baseRolloverYear + 99 inclusive. */
 	public int getBaseRolloverYear() { return baseRolloverYear; }
 
+	/** True to have devices create FlatFiscalPacket objects, which decode received fields only when accessed. */
+	public void setLazyResponses(boolean lazyResponses) { this.lazyResponses = lazyResponses; }
+	/** True to have devices create FlatFiscalPacket objects, which decode received fields only when accessed. */
+	public boolean getLazyResponses() { return lazyResponses; }
+
+	/** Set the clock used by devices to measure timeouts and to wait. */
+	public void setClock(Clock clock) { this.clock = clock; }
+	/** Get the clock used by devices to measure timeouts and to wait. */
+	public Clock getClock() { return clock != null ? clock : Clock.SYSTEM; }
+
 	/** Create a HasarFiscalDevice object. Uses the configured port source, if any. */
 	public FiscalDevice getFiscalDevice() throws Exception { return getHasarFiscalDevice(); }
 
 	/** Create a HasarFiscalDevice object. Uses the configured port source, if any. */
-	public HasarFiscalDevice getHasarFiscalDevice() throws Exception
-	{
-		return new HasarFiscalDevice(portSource != null ? portSource.getFiscalPort() : null, timeout, extendedProtocol, handleExtendedProtocol, maxTries, encoding, baseRolloverYear);
-	}
+	public HasarFiscalDevice getHasarFiscalDevice() throws Exception { return getHasarFiscalDevice(portSource != null ? portSource.getFiscalPort() : null); }
 
 	/** Create a HasarFiscalDevice object. Uses the specified port, if any. */
 	public HasarFiscalDevice getHasarFiscalDevice(FiscalPort port)
 	{
-		return new HasarFiscalDevice(port, timeout, extendedProtocol, handleExtendedProtocol, maxTries, encoding, baseRolloverYear);
+		HasarFiscalDevice d = new HasarFiscalDevice(port, timeout, extendedProtocol, handleExtendedProtocol, maxTries, encoding, baseRolloverYear, getClock());
+		d.setLazyResponses(lazyResponses);
+		return d;
 	}
 }
@@ -1,6 +1,7 @@
 package com.taliter.fiscal.device.hasar;
 
 import java.io.*;
+import java.util.*;
 
 import com.taliter.fiscal.util.*;
 
@@ -11,6 +12,7 @@ public class HasarFiscalPacket extends AbstractFiscalPacket
 	private final int baseRolloverYear;
 	private final int baseRolloverCentury;
 	private final int rolloverYear;
+	private transient PacketCharset charset;	// Resolved lazily from encoding.
 
 	public HasarFiscalPacket(String encoding, int baseRolloverYear)
 	{
@@ -21,63 +23,84 @@ public class HasarFiscalPacket extends AbstractFiscalPacket
 		baseRolloverCentury = baseRolloverYear - rolloverYear;
 	}
 
+	/** Create a packet that uses an already resolved encoding. */
+	public HasarFiscalPacket(PacketCharset charset, int baseRolloverYear)
+	{
+		this(charset.getName(), baseRolloverYear);
+		this.charset = charset;
+	}
+
 	public String toString()
 	{
-		StringBuffer b = new StringBuffer();
+		StringBuilder b = new StringBuilder();
 		b.append('{');
 		for (int i = 0, s = getSize(); i < s; i++)
 		{
 			b.append(' ');
+			byte[] f = getFieldArray(i);
+			int o = getFieldOffset(i), l = getLength(i);
 			if (i == 0)
 			{
-				byte[] f = get(i);
-				if (f.length == 1) ByteFormatter.toHex(b, f[0]);
-				else ByteFormatter.toHexString(b, f);
+				if (l == 1) ByteFormatter.toHex(b, f[o]);
+				else ByteFormatter.toHexString(b, f, o, l);
 			}
-			else ByteFormatter.toASCIIString(b, get(i));
+			else ByteFormatter.toASCIIString(b, f, o, l);
 		}
 		b.append(' ').append('}');
 		return b.toString();
 	}
 
+	/** Replace packets of this package with their FiscalPacketCodec form when serialized. */
+	protected Object writeReplace() throws ObjectStreamException { return FiscalPacketCodec.isEncodedType(this) ? new FiscalPacketCodec.Proxy(this) : (Object) this; }
+
 	/** Get the encoding in use for strings. */
 	public String getEncoding() { return encoding; }
 
+	/** Get the resolved encoding in use for strings. */
+	public PacketCharset getCharset()
+	{
+		if (charset == null)
+		{
+			try { charset = PacketCharset.forName(encoding); }
+			catch (UnsupportedEncodingException e) { throw new RuntimeException("Unsupported encoding (" + encoding + ")"); }
+		}
+		return charset;
+	}
+
+	protected boolean isASCIICompatible() { return getCharset().isASCIICompatible(); }
+
 	/** Get the base roll-over year in use for dates. Valid years are from baseRolloverYear to baseRolloverYear + 99 inclusive. */
 	public int getBaseRolloverYear() { return baseRolloverYear; }
 
 	// String Fields
 
-	public void setString(int field, String value)
-	{
-		byte[] f;
-		try { f = value.getBytes(encoding); }
-		catch (UnsupportedEncodingException e) { throw new RuntimeException("Unsupported encoding (" + encoding + ")"); }
-		set(field, f);
-	}
+	public void setString(int field, String value) { set(field, getCharset().encode(value)); }
 
 	public void setString(int field, String value, int style)
 	{
-		byte[] f;
-		try { f = value.getBytes(encoding); }
-		catch (UnsupportedEncodingException e) { throw new RuntimeException("Unsupported encoding (" + encoding + ")"); }
-		if (style != STYLE_NORMAL)
+		if (style == STYLE_NORMAL)
+		{
+			set(field, getCharset().encode(value));
+			return;
+		}
+		if (style < 0 || style > 15) throw new IllegalArgumentException();
+		PacketCharset c = getCharset();
+		byte[] x = new byte[value.length() + 1];
+		if (c.encode(value, x, 1) < 0)
 		{
-			if (style < 0 || style > 15) throw new IllegalArgumentException();
+			byte[] f = c.encode(value);
 			int l = f.length;
-			byte[] x = new byte[l + 1];
-			x[0] = (byte) (0xF0 | style);
+			x = new byte[l + 1];
 			System.arraycopy(f, 0, x, 1, l);
-			f = x;
 		}
-		set(field, f);
+		x[0] = (byte) (0xF0 | style);
+		set(field, x);
 	}
 
 	public String getString(int field)
 	{
 		byte[] f = get(field);
-		try { return f.length == 0 || (f[0] & 0xF0) != 0xF0 ? new String(f, encoding) : new String(f, 1, f.length - 1, encoding); }
-		catch (UnsupportedEncodingException e) { throw new RuntimeException("Unsupported encoding (" + encoding + ")"); }
+		return f.length == 0 || (f[0] & 0xF0) != 0xF0 ? getCharset().decode(f, 0, f.length) : getCharset().decode(f, 1, f.length - 1);
 	}
 
 	public int getStringStyle(int field)
@@ -88,70 +111,139 @@ public class HasarFiscalPacket extends AbstractFiscalPacket
 
 	// Date And Time Fields
 
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+	private static final long GREGORIAN_CUTOVER = -12219292800000L;
+
 	public void setDate(int field, int year, int month, int day)
 	{
 		if (year < baseRolloverYear || year >= baseRolloverYear + 100 || month < 1 || month > 12 || day < 1 || day > 31) throw new IllegalArgumentException();
-		setString(field, String.valueOf(1000000 + (year % 100) * 10000 + month * 100 + day).substring(1, 7));
+		setDigits(field, (year % 100) * 10000 + month * 100 + day);
 	}
 
-	public int getDateYear(int field)
+	public int getDateYear(int field) { return getYear(getDigits(field) / 10000); }
+	public int getDateMonth(int field) { return getDigits(field) / 100 % 100; }
+	public int getDateDay(int field) { return getDigits(field) % 100; }
+
+	/** Get a date field as a number in the form yyyymmdd, with the full 4 digit year. */
+	public int getDateValue(int field)
 	{
-		String v = getString(field);
-		if (v.length() != 6) throw new NumberFormatException();
-		int y = Integer.parseInt(v.substring(0, 2));
-		if (y < 0) throw new NumberFormatException();
-		return y + baseRolloverCentury + (y < rolloverYear ? 100 : 0);
+		int v = getDigits(field);
+		return getYear(v / 10000) * 10000 + v % 10000;
 	}
 
-	public int getDateMonth(int field)
+	public void setTime(int field, int hour, int minute, int second)
 	{
-		String v = getString(field);
-		if (v.length() != 6) throw new NumberFormatException();
-		int m = Integer.parseInt(v.substring(2, 4));
-		if (m < 0) throw new NumberFormatException();
-		return m;
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) throw new IllegalArgumentException();
+		setDigits(field, hour * 10000 + minute * 100 + second);
 	}
 
-	public int getDateDay(int field)
+	public int getTimeHour(int field) { return getDigits(field) / 10000; }
+	public int getTimeMinute(int field) { return getDigits(field) / 100 % 100; }
+	public int getTimeSecond(int field) { return getDigits(field) % 100; }
+
+	/** Get a time field as a number in the form hhmmss. */
+	public int getTimeValue(int field) { return getDigits(field); }
+
+	public void setDate(int field, Date date)
 	{
-		String v = getString(field);
-		if (v.length() != 6) throw new NumberFormatException();
-		int d = Integer.parseInt(v.substring(4, 6));
-		if (d < 0) throw new NumberFormatException();
-		return d;
+		long t = getLocalTime(date);
+		if (t < GREGORIAN_CUTOVER) super.setDate(field, date);
+		else
+		{
+			int d = getCivilDate(floorDiv(t, MILLIS_PER_DAY));
+			setDate(field, d / 10000, d / 100 % 100, d % 100);
+		}
 	}
 
-	public void setTime(int field, int hour, int minute, int second)
+	public void setDateAndTime(int dateField, int timeField, Date date)
 	{
-		if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) throw new IllegalArgumentException();
-		setString(field, String.valueOf(1000000 + hour * 10000 + minute * 100 + second).substring(1, 7));
+		long t = getLocalTime(date);
+		if (t < GREGORIAN_CUTOVER) super.setDateAndTime(dateField, timeField, date);
+		else
+		{
+			long days = floorDiv(t, MILLIS_PER_DAY);
+			int d = getCivilDate(days);
+			int s = (int) ((t - days * MILLIS_PER_DAY) / 1000);
+			setDateAndTime(dateField, timeField, d / 10000, d / 100 % 100, d % 100, s / 3600, s / 60 % 60, s % 60);
+		}
 	}
 
-	public int getTimeHour(int field)
+	public Calendar getDate(int field, Calendar calendar)
 	{
-		String v = getString(field);
-		if (v.length() != 6) throw new NumberFormatException();
-		int h = Integer.parseInt(v.substring(0, 2));
-		if (h < 0) throw new NumberFormatException();
-		return h;
+		int d = getDateValue(field);
+		calendar.clear();
+		calendar.set(Calendar.YEAR, d / 10000);
+		calendar.set(Calendar.MONTH, d / 100 % 100 - 1);
+		calendar.set(Calendar.DAY_OF_MONTH, d % 100);
+		return calendar;
 	}
 
-	public int getTimeMinute(int field)
+	public Calendar getDateAndTime(int dateField, int timeField, Calendar calendar)
 	{
-		String v = getString(field);
-		if (v.length() != 6) throw new NumberFormatException();
-		int m = Integer.parseInt(v.substring(2, 4));
-		if (m < 0) throw new NumberFormatException();
-		return m;
+		int d = getDateValue(dateField);
+		int t = getDigits(timeField);
+		calendar.clear();
+		calendar.set(Calendar.YEAR, d / 10000);
+		calendar.set(Calendar.MONTH, d / 100 % 100 - 1);
+		calendar.set(Calendar.DAY_OF_MONTH, d % 100);
+		calendar.set(Calendar.HOUR_OF_DAY, t / 10000);
+		calendar.set(Calendar.MINUTE, t / 100 % 100);
+		calendar.set(Calendar.SECOND, t % 100);
+		return calendar;
 	}
 
-	public int getTimeSecond(int field)
+	private int getYear(int y) { return y + baseRolloverCentury + (y < rolloverYear ? 100 : 0); }
+
+	/** Set a field of 6 digits. */
+	private void setDigits(int field, int value)
 	{
+		if (isASCIICompatible()) setASCIIDigits(field, value, 6);
+		else setString(field, String.valueOf(1000000 + value).substring(1, 7));
+	}
+
+	/** Get the value of a field of 6 digits. */
+	private int getDigits(int field)
+	{
+		if (isASCIICompatible() && getLength(field) == 6)
+		{
+			int v = parseASCIIDigits(getFieldArray(field), getFieldOffset(field), 6);
+			if (v >= 0) return v;
+		}
 		String v = getString(field);
 		if (v.length() != 6) throw new NumberFormatException();
-		int s = Integer.parseInt(v.substring(4, 6));
-		if (s < 0) throw new NumberFormatException();
-		return s;
+		int a = Integer.parseInt(v.substring(0, 2));
+		int b = Integer.parseInt(v.substring(2, 4));
+		int c = Integer.parseInt(v.substring(4, 6));
+		if (a < 0 || b < 0 || c < 0) throw new NumberFormatException();
+		return a * 10000 + b * 100 + c;
+	}
+
+	/** Get the milliseconds since the epoch in the default time-zone. */
+	private static long getLocalTime(Date date)
+	{
+		long t = date.getTime();
+		return t + TimeZone.getDefault().getOffset(t);
+	}
+
+	/** Convert days since the epoch to a proleptic Gregorian date in the form yyyymmdd. */
+	private static int getCivilDate(long days)
+	{
+		long z = days + 719468;	// Days since 0000-03-01.
+		long era = floorDiv(z, 146097);
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int d = doy - (153 * mp + 2) / 5 + 1;
+		int m = mp < 10 ? mp + 3 : mp - 9;
+		long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+		return (int) y * 10000 + m * 100 + d;
+	}
+
+	private static long floorDiv(long x, long y)
+	{
+		long q = x / y;
+		return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
 	}
 
 	// Special Fields
@@ -0,0 +1,278 @@
+package com.taliter.fiscal.device.hasar;
+
+import com.taliter.fiscal.device.*;
+
+/** The framing used by BasicFiscalDevice and HasarFiscalDevice.
+Frames are encoded with the static encode() method. Instances of this class are incremental decoders
+that are fed one byte at a time; BasicFiscalDevice receives its responses through one.
+Decoders are not thread-safe. */
+public final class HasarFrameCodec
+{
+	public static final int ASCII_STX = 0x02;
+	public static final int ASCII_ETX = 0x03;
+	public static final int ASCII_ACK = 0x06;
+	public static final int ASCII_DC1 = 0x11;	// XON
+	public static final int ASCII_DC2 = 0x12;
+	public static final int ASCII_DC3 = 0x13;	// XOFF
+	public static final int ASCII_DC4 = 0x14;
+	public static final int ASCII_NAK = 0x15;
+	public static final int ASCII_ESC = 0x1B;
+	public static final int ASCII_FS  = 0x1C;
+
+	/** No event; more bytes are needed. */
+	public static final int DECODE_NONE = 0;
+	/** A frame with a valid checksum was decoded. */
+	public static final int DECODE_FRAME = 1;
+	/** A frame was decoded but its checksum did not match. */
+	public static final int DECODE_CHECKSUM_ERROR = 2;
+	/** A frame was abandoned because of an invalid serial number, field or checksum byte. */
+	public static final int DECODE_FRAMING_ERROR = 3;
+	/** A control byte (ACK, NAK, DC2, DC3 or DC4) was received outside a frame. */
+	public static final int DECODE_CONTROL = 4;
+	/** An unexpected byte was received outside a frame. */
+	public static final int DECODE_UNEXPECTED = 5;
+
+	/** The invalid byte was received as the serial number. */
+	public static final int PART_SERIAL_NUMBER = 1;
+	/** The invalid byte was received within the fields. */
+	public static final int PART_FIELDS = 2;
+	/** The invalid byte was received as a checksum digit. */
+	public static final int PART_CHECKSUM = 3;
+
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_SN = 1;
+	private static final int STATE_ESC = 2;
+	private static final int STATE_FIELDS = 3;
+	private static final int STATE_CHECKSUM = 4;
+
+	/** Encode a packet as a frame. */
+	public static byte[] encode(FiscalPacket packet, int serialNumber, boolean extendedProtocol)
+	{
+		if (packet instanceof FlatFiscalPacket) return encode((FlatFiscalPacket) packet, serialNumber, extendedProtocol);
+
+		// Calculate length.
+		int size = packet.getSize();
+		int l = extendedProtocol ? 8 : 7;
+		for (int i = 0; i < size; i++) l += (i != 0 ? 1 : 0) + packet.getLength(i);
+
+		// Fomart packet.
+		byte[] b = new byte[l];
+		int p = 0;
+		int cs = ASCII_STX + ASCII_ETX;
+		b[p++] = (byte) ASCII_STX;
+		b[p++] = (byte) serialNumber; cs += serialNumber;
+		if (extendedProtocol) { b[p++] = (byte) ASCII_ESC; cs += ASCII_ESC; }
+		for (int i = 0; i < size; i++)
+		{
+			if (i != 0) { b[p++] = (byte) ASCII_FS; cs += ASCII_FS; }
+			byte[] f = packet.get(i);
+			int fl = f.length;
+			for (int j = 0; j < fl; j++)
+			{
+				int x = f[j] & 0xFF;
+				if (x < 0x20) throw new IllegalArgumentException("Invalid value in byte " + j + " of field " + i + " (" + x + ")");
+				b[p++] = (byte) x; cs += x;
+			}
+		}
+		b[p++] = (byte) ASCII_ETX;
+		for (int k = 12; k >= 0; k -= 4) b[p++] = (byte) Character.toUpperCase(Character.forDigit((cs >> k) & 0xF, 0x10));
+		if (p != l) throw new ArrayIndexOutOfBoundsException();
+		return b;
+	}
+
+	private static byte[] encode(FlatFiscalPacket packet, int serialNumber, boolean extendedProtocol)
+	{
+		// The fields are already laid out with their separators; validate and copy them at once.
+		byte[] d = packet.getData();
+		int dl = packet.getDataLength();
+		int size = packet.getSize();
+		int cs = ASCII_STX + ASCII_ETX + serialNumber + (extendedProtocol ? ASCII_ESC : 0);
+		for (int i = 0, p = 0; i < size; i++)
+		{
+			if (i != 0) { cs += ASCII_FS; p++; }
+			int e = p + packet.getLength(i);
+			for (int j = 0; p < e; j++)
+			{
+				int x = d[p++] & 0xFF;
+				if (x < 0x20) throw new IllegalArgumentException("Invalid value in byte " + j + " of field " + i + " (" + x + ")");
+				cs += x;
+			}
+		}
+		int h = extendedProtocol ? 3 : 2;
+		byte[] b = new byte[h + dl + 5];
+		b[0] = (byte) ASCII_STX;
+		b[1] = (byte) serialNumber;
+		if (extendedProtocol) b[2] = (byte) ASCII_ESC;
+		System.arraycopy(d, 0, b, h, dl);
+		int p = h + dl;
+		b[p++] = (byte) ASCII_ETX;
+		for (int k = 12; k >= 0; k -= 4) b[p++] = (byte) Character.toUpperCase(Character.forDigit((cs >> k) & 0xF, 0x10));
+		return b;
+	}
+
+	private int state = STATE_IDLE;
+	private int checksum;
+	private int receivedChecksum;
+	private int checksumDigits;
+	private int serialNumber;
+	private boolean extended;
+	private int control;
+	private int errorPart;
+
+	private byte[] data = new byte[64];
+	private int dataLength;
+	private int[] fieldEnds = new int[16];
+	private int fieldCount;
+
+	/** Reset the decoder discarding any partially decoded frame. */
+	public void reset()
+	{
+		state = STATE_IDLE;
+		dataLength = 0;
+		fieldCount = 0;
+	}
+
+	/** Returns true if a frame is partially decoded. */
+	public boolean inFrame() { return state != STATE_IDLE; }
+
+	/** Feed a byte to the decoder.
+	@return one of the DECODE_* event codes. */
+	public int decode(int x)
+	{
+		x &= 0xFF;
+		switch (state)
+		{
+			case STATE_IDLE:
+				if (x == ASCII_STX)
+				{
+					checksum = x;
+					dataLength = 0;
+					fieldCount = 0;
+					state = STATE_SN;
+					return DECODE_NONE;
+				}
+				if (x == ASCII_ACK || x == ASCII_NAK || x == ASCII_DC2 || x == ASCII_DC3 || x == ASCII_DC4)
+				{
+					control = x;
+					return DECODE_CONTROL;
+				}
+				return DECODE_UNEXPECTED;
+			case STATE_SN:
+				if (x < 0x20) return abandon(x, PART_SERIAL_NUMBER);
+				serialNumber = x;
+				checksum += x;
+				state = STATE_ESC;
+				return DECODE_NONE;
+			case STATE_ESC:
+				if (x == ASCII_ESC)
+				{
+					extended = true;
+					checksum += x;
+					state = STATE_FIELDS;
+					return DECODE_NONE;
+				}
+				extended = false;
+				state = STATE_FIELDS;
+				return decodeField(x);	// Not an ESC, the first byte of the fields.
+			case STATE_FIELDS:
+				return decodeField(x);
+			case STATE_CHECKSUM:
+				int d = Character.digit((char) x, 0x10);
+				if (d < 0) return abandon(x, PART_CHECKSUM);
+				receivedChecksum |= d << (12 - 4 * checksumDigits);
+				if (++checksumDigits < 4) return DECODE_NONE;
+				state = STATE_IDLE;
+				return receivedChecksum == checksum ? DECODE_FRAME : DECODE_CHECKSUM_ERROR;
+			default:
+				throw new IllegalStateException();
+		}
+	}
+
+	private int decodeField(int x)
+	{
+		if (x >= 0x20)
+		{
+			if (dataLength == data.length)
+			{
+				byte[] d = new byte[dataLength * 2];
+				System.arraycopy(data, 0, d, 0, dataLength);
+				data = d;
+			}
+			data[dataLength++] = (byte) x;
+			checksum += x;
+			return DECODE_NONE;
+		}
+		if (x == ASCII_FS || x == ASCII_ETX)
+		{
+			if (fieldCount == fieldEnds.length)
+			{
+				int[] e = new int[fieldCount * 2];
+				System.arraycopy(fieldEnds, 0, e, 0, fieldCount);
+				fieldEnds = e;
+			}
+			fieldEnds[fieldCount++] = dataLength;
+			checksum += x;
+			if (x == ASCII_ETX)
+			{
+				checksum &= 0xFFFF;
+				receivedChecksum = 0;
+				checksumDigits = 0;
+				state = STATE_CHECKSUM;
+			}
+			return DECODE_NONE;
+		}
+		return abandon(x, PART_FIELDS);
+	}
+
+	private int abandon(int x, int part)
+	{
+		// The offending byte is reconsidered as the start of a new frame.
+		errorPart = part;
+		state = STATE_IDLE;
+		if (x == ASCII_STX) decode(x);
+		return DECODE_FRAMING_ERROR;
+	}
+
+	/** Get the control byte reported by the last DECODE_CONTROL event. */
+	public int getControl() { return control; }
+	/** Get the part of the frame (one of the PART_* constants) that held the byte reported by the last DECODE_FRAMING_ERROR event. */
+	public int getFramingErrorPart() { return errorPart; }
+
+	/** Get the serial number of the last decoded frame. */
+	public int getSerialNumber() { return serialNumber; }
+	/** Returns true if the last decoded frame used the extended (STATPRN) protocol. */
+	public boolean isExtendedProtocol() { return extended; }
+	/** Get the checksum received with the last decoded frame. After a checksum framing error, only its valid digits are set. */
+	public int getReceivedChecksum() { return receivedChecksum; }
+	/** Get the number of valid checksum digits received with the last decoded frame. */
+	public int getChecksumDigits() { return checksumDigits; }
+	/** Get the checksum computed for the last decoded frame. */
+	public int getComputedChecksum() { return checksum; }
+
+	/** Get the number of fields of the last decoded frame. */
+	public int getFieldCount() { return fieldCount; }
+
+	/** Get the length of a field of the last decoded frame. */
+	public int getFieldLength(int field)
+	{
+		if (field < 0 || field >= fieldCount) throw new IndexOutOfBoundsException();
+		return fieldEnds[field] - (field != 0 ? fieldEnds[field - 1] : 0);
+	}
+
+	/** Get the command code of the last decoded frame, or -1 if its first field is not 1 byte long. */
+	public int getCommandCode() { return fieldCount != 0 && fieldEnds[0] == 1 ? data[0] & 0xFF : -1; }
+
+	/** Copy the fields of the last decoded frame into a packet.
+	@return the passed packet. */
+	public FiscalPacket getPacket(FiscalPacket packet)
+	{
+		packet.clear();
+		for (int i = 0, s = 0; i < fieldCount; i++)
+		{
+			int e = fieldEnds[i];
+			packet.setCopy(i, data, s, e - s);
+			s = e;
+		}
+		return packet;
+	}
+}
@@ -0,0 +1,98 @@
+package com.taliter.fiscal.device.hasar;
+
+import com.taliter.fiscal.device.*;
+
+/**
+Helpers for the printer and fiscal status words of Hasar responses.
+
+<p>Both words are packed in an int, the printer status (PST_* bits) in the lower 16 bits and the fiscal status
+(FST_* bits) in the upper 16 bits, so that a complete status can be stored, compared and tested without allocation.
+*/
+public final class HasarStatus implements HasarConstants
+{
+	/** Printer status bits that require attention: errors, off line, paper out and cover open. */
+	public static final int PRINTER_ATTENTION = PST_PRINTER_ERROR | PST_PRINTER_OFFLINE | PST_JOURNAL_PAPER_OUT | PST_TICKET_PAPER_OUT | PST_PRINTER_COVER_OPEN;
+	/** Printer status bits that signal that paper is out. */
+	public static final int PRINTER_PAPER_OUT = PST_JOURNAL_PAPER_OUT | PST_TICKET_PAPER_OUT;
+	/** Fiscal status bits that signal a failed request. */
+	public static final int FISCAL_REQUEST_ERROR = FST_UNKNOWN_COMMAND | FST_INVALID_DATA_FIELD | FST_INVALID_COMMAND | FST_ACCUMULATOR_OVERFLOW;
+	/** Fiscal status bits that signal a device failure. */
+	public static final int FISCAL_DEVICE_ERROR = FST_FISCAL_MEMORY_CRC_ERROR | FST_WORKING_MEMORY_CRC_ERROR | FST_FISCAL_MEMORY_FULL | FST_CLOCK_ERROR;
+	/** Fiscal status bits that signal a condition to be handled soon. */
+	public static final int FISCAL_WARNING = FST_FISCAL_MEMORY_ALMOST_FULL;
+
+	private static final String[] PRINTER_BIT_NAMES =
+	{
+		"printer busy", "bit 1", "printer error", "printer offline", "journal paper out", "ticket paper out", "print buffer full", "print buffer empty",
+		"printer cover open", "bit 9", "bit 10", "bit 11", "bit 12", "bit 13", "money drawer closed", "printer bitwise or"
+	};
+
+	private static final String[] FISCAL_BIT_NAMES =
+	{
+		"fiscal memory CRC error", "working memory CRC error", "bit 2", "unknown command", "invalid data field", "invalid command", "accumulator overflow", "fiscal memory full",
+		"fiscal memory almost full", "device certified", "device fiscalized", "clock error", "fiscal document open", "document open", "STATPRN active", "fiscal bitwise or"
+	};
+
+	private HasarStatus() {}
+
+	/** Pack a printer status and a fiscal status. */
+	public static int pack(int printerStatus, int fiscalStatus) { return (fiscalStatus & 0xFFFF) << 16 | printerStatus & 0xFFFF; }
+
+	/** Get the packed status of a response packet. */
+	public static int get(FiscalPacket response) { return pack(response.getPrinterStatus(), response.getFiscalStatus()); }
+
+	/** Get the printer status of a packed status. */
+	public static int getPrinterStatus(int status) { return status & 0xFFFF; }
+
+	/** Get the fiscal status of a packed status. */
+	public static int getFiscalStatus(int status) { return status >>> 16; }
+
+	/** Get the bits that differ between two packed statuses. */
+	public static int getChanges(int oldStatus, int newStatus) { return oldStatus ^ newStatus; }
+
+	/** Returns true if the printer status or the fiscal status signals a condition requiring attention. */
+	public static boolean needsAttention(int status) { return isPrinterAttention(status) || isError(status); }
+
+	/** Returns true if the printer status signals errors, off line, paper out or cover open. */
+	public static boolean isPrinterAttention(int status) { return (status & PRINTER_ATTENTION) != 0; }
+
+	/** Returns true if the printer status signals that paper is out. */
+	public static boolean isPaperOut(int status) { return (status & PRINTER_PAPER_OUT) != 0; }
+
+	/** Returns true if the printer status signals that the cover is open. */
+	public static boolean isCoverOpen(int status) { return (status & PST_PRINTER_COVER_OPEN) != 0; }
+
+	/** Returns true if the printer status signals a printer error or off line state. */
+	public static boolean isPrinterError(int status) { return (status & (PST_PRINTER_ERROR | PST_PRINTER_OFFLINE)) != 0; }
+
+	/** Returns true if the fiscal status signals a failed request or a device failure. */
+	public static boolean isError(int status) { return isRequestError(status) || isDeviceError(status); }
+
+	/** Returns true if the fiscal status signals a failed request. */
+	public static boolean isRequestError(int status) { return (getFiscalStatus(status) & FISCAL_REQUEST_ERROR) != 0; }
+
+	/** Returns true if the fiscal status signals a device failure. */
+	public static boolean isDeviceError(int status) { return (getFiscalStatus(status) & FISCAL_DEVICE_ERROR) != 0; }
+
+	/** Returns true if the fiscal status signals a condition to be handled soon. */
+	public static boolean isWarning(int status) { return (getFiscalStatus(status) & FISCAL_WARNING) != 0; }
+
+	/** Returns true if the fiscal status signals an open fiscal document. */
+	public static boolean isFiscalDocumentOpen(int status) { return (getFiscalStatus(status) & FST_FISCAL_DOCUMENT_OPEN) != 0; }
+
+	/** Get a description of the bits set in a packed status, or of the changed bits returned by getChanges(). */
+	public static String toString(int status)
+	{
+		StringBuffer b = new StringBuffer();
+		b.append('{');
+		appendNames(b, getPrinterStatus(status), PRINTER_BIT_NAMES);
+		appendNames(b, getFiscalStatus(status), FISCAL_BIT_NAMES);
+		b.append(' ').append('}');
+		return b.toString();
+	}
+
+	private static void appendNames(StringBuffer b, int bits, String[] names)
+	{
+		for (int i = 0; i < 16; i++) if ((bits & 1 << i) != 0) b.append(' ').append(names[i]).append(';');
+	}
+}
@@ -0,0 +1,138 @@
+package com.taliter.fiscal.device.hasar;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+A resolved string encoding for packet fields.
+
+<p>Instances are obtained with forName() and are shared and cached by encoding name. For single-byte encodings
+(such as the Cp437, Cp850 and ISO-8859-1 code pages used by fiscal printers) strings are encoded and decoded through
+precomputed tables, giving the same results as String.getBytes() and new String(), and pure ASCII strings take
+an even faster path. Other encodings are handled by the platform charset.
+*/
+public final class PacketCharset
+{
+	private static final Map cache = new ConcurrentHashMap();
+
+	/** Get the PacketCharset for an encoding name. */
+	public static PacketCharset forName(String encoding) throws UnsupportedEncodingException
+	{
+		PacketCharset c = (PacketCharset) cache.get(encoding);
+		if (c == null)
+		{
+			c = new PacketCharset(encoding);
+			cache.put(encoding, c);
+		}
+		return c;
+	}
+
+	private final String name;
+	private final String canonicalName;
+	private final boolean asciiCompatible;
+	private final char[] decodeTable;	// null if not single-byte.
+	private final byte[][] encodeTable;	// Indexed by high byte, then low byte. 0 means unmapped except for char 0.
+	private final byte replacement;
+
+	private PacketCharset(String name) throws UnsupportedEncodingException
+	{
+		try { canonicalName = Charset.forName(name).name(); }
+		catch (IllegalArgumentException e) { throw new UnsupportedEncodingException(name); }
+		this.name = name;
+
+		byte[] b = new byte[256];
+		for (int i = 0; i < 256; i++) b[i] = (byte) i;
+		String s = new String(b, canonicalName);
+		boolean singleByte = s.length() == 256 && "?".getBytes(canonicalName).length == 1;
+		boolean ascii = true;
+		for (int i = 0; i < 0x80 && ascii; i++) ascii = i < s.length() && s.charAt(i) == i;
+		if (singleByte)
+		{
+			// Encode every char outside the surrogate range at once to learn the mapping, including best fit mappings.
+			char[] c = new char[0x10000 - 0x800];
+			for (int i = 0, x = 0; x < 0x10000; x++) if (x < 0xD800 || x > 0xDFFF) c[i++] = (char) x;
+			byte[] e = new String(c).getBytes(canonicalName);
+			if (e.length != c.length) singleByte = false;
+			else
+			{
+				replacement = "?".getBytes(canonicalName)[0];
+				encodeTable = new byte[256][];
+				for (int i = 0; i < c.length; i++)
+				{
+					char x = c[i];
+					if (e[i] == replacement && x != '?' || e[i] == 0 && x != 0) continue;
+					byte[] page = encodeTable[x >> 8];
+					if (page == null) page = encodeTable[x >> 8] = new byte[256];
+					page[x & 0xFF] = e[i];
+				}
+				decodeTable = s.toCharArray();
+				asciiCompatible = ascii;
+				return;
+			}
+		}
+		replacement = '?';
+		encodeTable = null;
+		decodeTable = null;
+		asciiCompatible = ascii && "+-.0123456789".getBytes(canonicalName).length == 13;
+	}
+
+	/** Get the encoding name this instance was obtained with. */
+	public String getName() { return name; }
+
+	/** Returns true if each char is encoded as a single byte. */
+	public boolean isSingleByte() { return decodeTable != null; }
+
+	/** Returns true if ASCII chars are encoded and decoded as in ASCII. */
+	public boolean isASCIICompatible() { return asciiCompatible; }
+
+	/** Encode a string. Unmappable chars are encoded as '?'. */
+	public byte[] encode(String s)
+	{
+		if (decodeTable != null)
+		{
+			byte[] b = new byte[s.length()];
+			if (encode(s, b, 0) >= 0) return b;
+		}
+		try { return s.getBytes(canonicalName); }
+		catch (UnsupportedEncodingException e) { throw new RuntimeException("Unsupported encoding (" + name + ")"); }
+	}
+
+	/** Encode a string into an array through the tables, which takes <code>s.length()</code> bytes.
+	@return the offset after the last byte written, or -1 if the encoding is not single-byte
+	or the string has surrogate chars, in which case encode(String) must be used. */
+	int encode(String s, byte[] b, int offset)
+	{
+		if (decodeTable == null) return -1;
+		int l = s.length();
+		int i = 0;
+		if (asciiCompatible) for (char c; i < l && (c = s.charAt(i)) < 0x80; i++) b[offset + i] = (byte) c;
+		for (; i < l; i++)
+		{
+			char c = s.charAt(i);
+			if (c >= 0xD800 && c <= 0xDFFF) return -1;
+			byte[] page = encodeTable[c >> 8];
+			byte x = page != null ? page[c & 0xFF] : 0;
+			b[offset + i] = x != 0 || c == 0 ? x : replacement;
+		}
+		return offset + l;
+	}
+
+	/** Decode bytes into a string. */
+	public String decode(byte[] b, int offset, int length)
+	{
+		if (decodeTable == null)
+		{
+			try { return new String(b, offset, length, canonicalName); }
+			catch (UnsupportedEncodingException e) { throw new RuntimeException("Unsupported encoding (" + name + ")"); }
+		}
+		char[] c = new char[length];
+		int i = 0;
+		if (asciiCompatible) for (byte x; i < length && (x = b[offset + i]) >= 0; i++) c[i] = (char) x;
+		for (; i < length; i++) c[i] = decodeTable[b[offset + i] & 0xFF];
+		return new String(c);
+	}
+
+	public String toString() { return name; }
+}
@@ -25,7 +25,8 @@ public interface FiscalPort
 	@throws UnsupportedOperationException if baud rates are not applicable to this type of port. */
 	public int getBaudRate() throws Exception;
 
-	/** Get the input stream. The port must be open. */
+	/** Get the input stream. The port must be open. Receive timeouts throw FiscalPortTimeoutException.
+	Implementations should return a FiscalPortInputStream, which can also signal timeouts without exceptions. */
 	public InputStream getInputStream() throws IOException;
 	/** Get the output stream. The port must be open. */
 	public OutputStream getOutputStream() throws IOException;
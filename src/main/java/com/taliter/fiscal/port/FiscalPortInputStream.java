@@ -0,0 +1,69 @@
+package com.taliter.fiscal.port;
+
+import java.io.*;
+
+/** A port input stream that can signal receive timeouts without throwing exceptions.
+The readOrTimeout() methods return TIMEOUT when a receive timeout occurs, while the read() methods throw
+FiscalPortTimeoutException as any port input stream. FiscalPort implementations should return objects
+of this class from getInputStream(); other port input streams can be adapted with get(). */
+public abstract class FiscalPortInputStream extends InputStream
+{
+	/** Returned by the readOrTimeout() methods when a receive timeout occurs. */
+	public static final int TIMEOUT = -2;
+
+	private byte[] single;
+
+	/** Get a FiscalPortInputStream for a port input stream. The stream itself is returned if it is a FiscalPortInputStream,
+	otherwise it is wrapped and its FiscalPortTimeoutException exceptions are returned as TIMEOUT. */
+	public static FiscalPortInputStream get(InputStream in)
+	{
+		if (in == null) throw new NullPointerException();
+		return in instanceof FiscalPortInputStream ? (FiscalPortInputStream) in : new Adapter(in);
+	}
+
+	/** Read a byte. Returns the byte, -1 at the end of the stream or TIMEOUT if a receive timeout occurs. */
+	public int readOrTimeout() throws IOException
+	{
+		byte[] b = single;
+		if (b == null) single = b = new byte[1];
+		int l = readOrTimeout(b, 0, 1);
+		return l == 1 ? b[0] & 0xFF : l;
+	}
+
+	/** Read up to len bytes, blocking until at least one byte is read (len must be positive).
+	Returns the number of bytes read, -1 at the end of the stream or TIMEOUT if a receive timeout occurs. */
+	public abstract int readOrTimeout(byte[] b, int off, int len) throws IOException;
+
+	public int read() throws IOException
+	{
+		int x = readOrTimeout();
+		if (x == TIMEOUT) throw new FiscalPortTimeoutException();
+		return x;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0) return 0;
+		int l = readOrTimeout(b, off, len);
+		if (l == TIMEOUT) throw new FiscalPortTimeoutException();
+		return l;
+	}
+
+	private static final class Adapter extends FiscalPortInputStream
+	{
+		private final InputStream in;
+
+		public Adapter(InputStream in) { this.in = in; }
+
+		public int readOrTimeout(byte[] b, int off, int len) throws IOException
+		{
+			try { return in.read(b, off, len); }
+			catch (FiscalPortTimeoutException e) { return TIMEOUT; }
+		}
+
+		public int read() throws IOException { return in.read(); }
+		public int read(byte[] b, int off, int len) throws IOException { return in.read(b, off, len); }
+		public int available() throws IOException { return in.available(); }
+		public void close() throws IOException { in.close(); }
+	}
+}
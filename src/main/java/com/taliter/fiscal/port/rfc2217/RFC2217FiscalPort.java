@@ -0,0 +1,351 @@
+package com.taliter.fiscal.port.rfc2217;
+
+import java.io.*;
+
+import com.taliter.fiscal.port.*;
+import com.taliter.fiscal.port.socket.*;
+
+/**
+A FiscalPort implementation that communicates with remote serial ports through access servers that
+support the Telnet Com Port Control Option (<a href="https://www.rfc-editor.org/rfc/rfc2217">RFC 2217</a>).
+
+<p>The line settings are sent when connecting, and setBaudRate() changes the baud rate of the remote serial port,
+so HasarBaudRateChanger and HasarAutomaticDetection work with networked devices. Data is escaped and Telnet
+commands are filtered out of received data. Responses of the access server are available via getNegotiatedBaudRate(),
+getLineState() and getModemState().
+*/
+public class RFC2217FiscalPort extends SocketFiscalPort
+{
+	// Line setting values, as defined in RFC 2217.
+
+	public static final int PARITY_NONE = 1;
+	public static final int PARITY_ODD = 2;
+	public static final int PARITY_EVEN = 3;
+	public static final int PARITY_MARK = 4;
+	public static final int PARITY_SPACE = 5;
+
+	public static final int STOPBITS_1 = 1;
+	public static final int STOPBITS_2 = 2;
+	public static final int STOPBITS_1_5 = 3;
+
+	public static final int FLOWCONTROL_NONE = 1;
+	public static final int FLOWCONTROL_XONXOFF = 2;
+	public static final int FLOWCONTROL_HARDWARE = 3;
+
+	/** Purge the receive buffer of the access server. The received bytes not read yet are discarded too. */
+	public static final int PURGE_RECEIVE = 1;
+	/** Purge the transmit buffer of the access server. */
+	public static final int PURGE_TRANSMIT = 2;
+	/** Purge both buffers of the access server. */
+	public static final int PURGE_BOTH = 3;
+
+	// Telnet.
+	private static final int IAC = 255;
+	private static final int DONT = 254;
+	private static final int DO = 253;
+	private static final int WONT = 252;
+	private static final int WILL = 251;
+	private static final int SB = 250;
+	private static final int SE = 240;
+	private static final int OPTION_BINARY = 0;
+	private static final int OPTION_SUPPRESS_GO_AHEAD = 3;
+	private static final int OPTION_COM_PORT = 44;
+
+	// Com Port Control Option commands sent by clients. Servers answer with the same command plus SERVER_OFFSET.
+	private static final int SET_BAUDRATE = 1;
+	private static final int SET_DATASIZE = 2;
+	private static final int SET_PARITY = 3;
+	private static final int SET_STOPSIZE = 4;
+	private static final int SET_CONTROL = 5;
+	private static final int NOTIFY_LINESTATE = 6;
+	private static final int NOTIFY_MODEMSTATE = 7;
+	private static final int FLOWCONTROL_SUSPEND = 8;
+	private static final int FLOWCONTROL_RESUME = 9;
+	private static final int PURGE_DATA = 12;
+	private static final int SERVER_OFFSET = 100;
+
+	// Receive states.
+	private static final int STATE_DATA = 0;
+	private static final int STATE_IAC = 1;
+	private static final int STATE_OPTION = 2;
+	private static final int STATE_SB = 3;
+	private static final int STATE_SB_IAC = 4;
+
+	private int baudRate;
+	private final int dataBits;
+	private final int stopBits;
+	private final int parity;
+	private int flowControl;
+
+	private FiscalPortInputStream in;
+	private OutputStream out;
+	private final byte[] escaped = new byte[512];
+	private final byte[] pending = new byte[512];	// Filtered data bytes not read yet, between pendingPosition and pendingLimit.
+	private int pendingPosition;
+	private int pendingLimit;
+	private int state;
+	private int verb;
+	private final byte[] subnegotiation = new byte[64];
+	private int subnegotiationLength;
+	private boolean comPortAccepted;
+	private int negotiatedBaudRate;
+	private int lineState = -1;
+	private int modemState = -1;
+
+	public RFC2217FiscalPort(String host, int port, int connectTimeout, int baudRate, int dataBits, int stopBits, int parity, int flowControl)
+	{
+		super(host, port, connectTimeout);
+		this.baudRate = baudRate;
+		this.dataBits = dataBits;
+		this.stopBits = stopBits;
+		this.parity = parity;
+		this.flowControl = flowControl;
+	}
+
+	public void open() throws IOException
+	{
+		super.open();
+		final FiscalPortInputStream sin = (FiscalPortInputStream) super.getInputStream();
+		final OutputStream sout = super.getOutputStream();
+		in = new FiscalPortInputStream()
+		{
+			public int readOrTimeout(byte[] b, int off, int len) throws IOException
+			{
+				if (pendingPosition < pendingLimit)
+				{
+					int l = Math.min(len, pendingLimit - pendingPosition);
+					System.arraycopy(pending, pendingPosition, b, off, l);
+					pendingPosition += l;
+					return l;
+				}
+				long deadline = getReceiveDeadline();	// Telnet commands received meanwhile do not extend the timeout.
+				for (;;)
+				{
+					int l = receive(b, off, len, deadline);
+					if (l <= 0) return l;
+					l = filter(b, off, l);
+					if (l > 0) return l;
+				}
+			}
+			public int available() throws IOException
+			{
+				// Filter the bytes already received, so that Telnet commands are not counted as data.
+				while (pendingPosition == pendingLimit)
+				{
+					int a = sin.available();
+					if (a <= 0) return 0;
+					int l = sin.readOrTimeout(pending, 0, Math.min(a, pending.length));
+					if (l <= 0) return 0;
+					pendingPosition = 0;
+					pendingLimit = filter(pending, 0, l);
+				}
+				return pendingLimit - pendingPosition;
+			}
+		}
+		;
+		out = new OutputStream()
+		{
+			public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				// Escape IAC bytes by doubling them.
+				int i = off, e = off + len;
+				while (i < e)
+				{
+					int l = 0;
+					for (; i < e && l < escaped.length - 1; i++)
+					{
+						escaped[l++] = b[i];
+						if (b[i] == (byte) IAC) escaped[l++] = (byte) IAC;
+					}
+					sout.write(escaped, 0, l);
+				}
+			}
+		}
+		;
+	}
+
+	public void close() throws IOException
+	{
+		in = null;
+		out = null;
+		super.close();
+	}
+
+	public InputStream getInputStream() throws IOException { return in; }
+	public OutputStream getOutputStream() throws IOException { return out; }
+
+	/** Set the baud rate of the remote serial port. The port may be open or closed. */
+	public void setBaudRate(int baudRate) throws IOException
+	{
+		this.baudRate = baudRate;
+		if (isOpen()) sendCommand(SET_BAUDRATE, baudRate, 4);
+	}
+
+	/** Get the requested baud rate. */
+	public int getBaudRate() { return baudRate; }
+
+	/** Get the baud rate last reported by the access server, or 0 if none was reported. */
+	public int getNegotiatedBaudRate() { return negotiatedBaudRate; }
+
+	/** Get the number of data bits. */
+	public int getDataBits() { return dataBits; }
+	/** Get the number of stop bits (STOPBITS_*). */
+	public int getStopBits() { return stopBits; }
+	/** Get the type of parity (PARITY_*). */
+	public int getParity() { return parity; }
+
+	/** Set the type of flow control (FLOWCONTROL_*). The port may be open or closed. */
+	public void setFlowControl(int flowControl) throws IOException
+	{
+		this.flowControl = flowControl;
+		if (isOpen()) sendCommand(SET_CONTROL, flowControl, 1);
+	}
+
+	/** Get the type of flow control (FLOWCONTROL_*). */
+	public int getFlowControl() { return flowControl; }
+
+	/** Get the line state last notified by the access server, or -1 if none was notified. */
+	public int getLineState() { return lineState; }
+	/** Get the modem state last notified by the access server, or -1 if none was notified. */
+	public int getModemState() { return modemState; }
+
+	/** Returns true if the access server accepted the Com Port Control Option. */
+	public boolean isComPortAccepted() { return comPortAccepted; }
+
+	/** Purge the buffers of the access server (PURGE_*). The port must be open. */
+	public void purge(int buffers) throws IOException
+	{
+		if (buffers < PURGE_RECEIVE || buffers > PURGE_BOTH) throw new IllegalArgumentException();
+		if (buffers != PURGE_TRANSMIT)
+		{
+			pendingPosition = pendingLimit = 0;
+			discardInput();
+		}
+		sendCommand(PURGE_DATA, buffers, 1);
+	}
+
+	/** Ask the access server to suspend sending data to this port. The port must be open. */
+	public void suspendFlow() throws IOException { sendCommand(FLOWCONTROL_SUSPEND, 0, 0); }
+	/** Ask the access server to resume sending data to this port. The port must be open. */
+	public void resumeFlow() throws IOException { sendCommand(FLOWCONTROL_RESUME, 0, 0); }
+
+	protected void connected() throws IOException
+	{
+		state = STATE_DATA;
+		pendingPosition = pendingLimit = 0;
+		comPortAccepted = false;
+		send(new byte[]
+		{
+			(byte) IAC, (byte) WILL, OPTION_COM_PORT,
+			(byte) IAC, (byte) WILL, OPTION_BINARY, (byte) IAC, (byte) DO, OPTION_BINARY,
+			(byte) IAC, (byte) WILL, OPTION_SUPPRESS_GO_AHEAD, (byte) IAC, (byte) DO, OPTION_SUPPRESS_GO_AHEAD
+		}
+		, 0, 15);
+		sendCommand(SET_BAUDRATE, baudRate, 4);
+		sendCommand(SET_DATASIZE, dataBits, 1);
+		sendCommand(SET_PARITY, parity, 1);
+		sendCommand(SET_STOPSIZE, stopBits, 1);
+		sendCommand(SET_CONTROL, flowControl, 1);
+	}
+
+	// Sending
+
+	/** Send a Com Port Control Option command with a big-endian value of the specified number of bytes. */
+	private void sendCommand(int command, int value, int length) throws IOException
+	{
+		byte[] b = new byte[6 + length * 2];
+		int l = 0;
+		b[l++] = (byte) IAC;
+		b[l++] = (byte) SB;
+		b[l++] = OPTION_COM_PORT;
+		b[l++] = (byte) command;
+		for (int k = (length - 1) * 8; k >= 0; k -= 8)
+		{
+			b[l++] = (byte) (value >> k);
+			if (b[l - 1] == (byte) IAC) b[l++] = (byte) IAC;
+		}
+		b[l++] = (byte) IAC;
+		b[l++] = (byte) SE;
+		send(b, 0, l);
+	}
+
+	// Receiving
+
+	/** Remove Telnet commands from received bytes in place. Returns the number of data bytes left. */
+	private int filter(byte[] b, int off, int len) throws IOException
+	{
+		int d = off;
+		for (int i = off, e = off + len; i < e; i++)
+		{
+			int x = b[i] & 0xFF;
+			switch (state)
+			{
+				case STATE_DATA:
+					if (x == IAC) state = STATE_IAC;
+					else b[d++] = (byte) x;
+					break;
+				case STATE_IAC:
+					if (x == IAC)
+					{
+						b[d++] = (byte) x;	// Escaped data byte.
+						state = STATE_DATA;
+					}
+					else if (x >= WILL && x <= DONT)
+					{
+						verb = x;
+						state = STATE_OPTION;
+					}
+					else if (x == SB)
+					{
+						subnegotiationLength = 0;
+						state = STATE_SB;
+					}
+					else state = STATE_DATA;	// Ignore other commands.
+					break;
+				case STATE_OPTION:
+					negotiate(verb, x);
+					state = STATE_DATA;
+					break;
+				case STATE_SB:
+					if (x == IAC) state = STATE_SB_IAC;
+					else if (subnegotiationLength < subnegotiation.length) subnegotiation[subnegotiationLength++] = (byte) x;
+					break;
+				case STATE_SB_IAC:
+					if (x == SE)
+					{
+						subnegotiated();
+						state = STATE_DATA;
+					}
+					else
+					{
+						if (subnegotiationLength < subnegotiation.length) subnegotiation[subnegotiationLength++] = (byte) x;
+						state = STATE_SB;
+					}
+					break;
+			}
+		}
+		return d - off;
+	}
+
+	private void negotiate(int verb, int option) throws IOException
+	{
+		boolean supported = option == OPTION_COM_PORT || option == OPTION_BINARY || option == OPTION_SUPPRESS_GO_AHEAD;
+		if (verb == DO && option == OPTION_COM_PORT) comPortAccepted = true;
+		if (supported) return;	// Requested when connecting.
+		if (verb == DO) send(new byte[] { (byte) IAC, (byte) WONT, (byte) option }, 0, 3);
+		else if (verb == WILL) send(new byte[] { (byte) IAC, (byte) DONT, (byte) option }, 0, 3);
+	}
+
+	private void subnegotiated()
+	{
+		byte[] s = subnegotiation;
+		if (subnegotiationLength < 2 || (s[0] & 0xFF) != OPTION_COM_PORT) return;
+		int command = (s[1] & 0xFF) - SERVER_OFFSET;
+		int value = 0;
+		for (int i = 2; i < subnegotiationLength; i++) value = value << 8 | s[i] & 0xFF;
+		if (command == SET_BAUDRATE && subnegotiationLength == 6) negotiatedBaudRate = value;
+		else if (command == NOTIFY_LINESTATE && subnegotiationLength == 3) lineState = value;
+		else if (command == NOTIFY_MODEMSTATE && subnegotiationLength == 3) modemState = value;
+	}
+}
@@ -0,0 +1,104 @@
+package com.taliter.fiscal.port.rfc2217;
+
+import com.taliter.fiscal.port.*;
+
+/**
+An RFC2217FiscalPort factory.
+
+<p>Defaults:
+
+<p><code>host = null;<br>
+port = 0;<br>
+connectTimeout = 2000;	// In milliseconds.<br>
+keepAlive = true;<br>
+reconnect = true;<br>
+baudRate = 9600;<br>
+dataBits = 8;<br>
+stopBits = RFC2217FiscalPort.STOPBITS_1;<br>
+parity = RFC2217FiscalPort.PARITY_NONE;<br>
+flowControl = RFC2217FiscalPort.FLOWCONTROL_NONE;</code>
+*/
+public class RFC2217FiscalPortSource implements FiscalPortSource, Cloneable
+{
+	private String host;
+	private int port;
+	private int connectTimeout = 2000;	// In milliseconds.
+	private boolean keepAlive = true;
+	private boolean reconnect = true;
+	private int baudRate = 9600;
+	private int dataBits = 8;
+	private int stopBits = RFC2217FiscalPort.STOPBITS_1;
+	private int parity = RFC2217FiscalPort.PARITY_NONE;
+	private int flowControl = RFC2217FiscalPort.FLOWCONTROL_NONE;
+
+	public RFC2217FiscalPortSource() {}
+	public RFC2217FiscalPortSource(String host, int port) { this.host = host; this.port = port; }
+
+	public Object clone()
+	{
+		try { return super.clone(); }
+		catch (CloneNotSupportedException e) { throw new Error(e.toString()); }
+	}
+
+	/** Set the host of the access server. */
+	public void setHost(String host) { this.host = host; }
+	/** Get the host of the access server. */
+	public String getHost() { return host; }
+
+	/** Set the TCP port number of the access server. */
+	public void setPort(int port) { this.port = port; }
+	/** Get the TCP port number of the access server. */
+	public int getPort() { return port; }
+
+	/** Set the connect timeout in milliseconds. -1 means no timeout. */
+	public void setConnectTimeout(int connectTimeout) { this.connectTimeout = connectTimeout; }
+	/** Get the connect timeout in milliseconds. -1 means no timeout. */
+	public int getConnectTimeout() { return connectTimeout; }
+
+	/** True to enable TCP keep-alive. */
+	public void setKeepAlive(boolean keepAlive) { this.keepAlive = keepAlive; }
+	/** True to enable TCP keep-alive. */
+	public boolean getKeepAlive() { return keepAlive; }
+
+	/** True to connect again when the connection is lost. */
+	public void setReconnect(boolean reconnect) { this.reconnect = reconnect; }
+	/** True to connect again when the connection is lost. */
+	public boolean getReconnect() { return reconnect; }
+
+	/** Set the baud rate. */
+	public void setBaudRate(int baudRate) { this.baudRate = baudRate; }
+	/** Get the baud rate. */
+	public int getBaudRate() { return baudRate; }
+
+	/** Set the number of data bits. */
+	public void setDataBits(int dataBits) { this.dataBits = dataBits; }
+	/** Get the number of data bits. */
+	public int getDataBits() { return dataBits; }
+
+	/** Set the number of stop bits. */
+	public void setStopBits(int stopBits) { this.stopBits = stopBits; }
+	/** Get the number of stop bits. */
+	public int getStopBits() { return stopBits; }
+
+	/** Set the type of parity if any. */
+	public void setParity(int parity) { this.parity = parity; }
+	/** Get the type of parity if any. */
+	public int getParity() { return parity; }
+
+	/** Set the type of flow control if any. */
+	public void setFlowControl(int flowControl) { this.flowControl = flowControl; }
+	/** Get the type of flow control if any. */
+	public int getFlowControl() { return flowControl; }
+
+	/** Create an RFC2217FiscalPort object. */
+	public FiscalPort getFiscalPort() { return getRFC2217FiscalPort(); }
+
+	/** Create an RFC2217FiscalPort object. */
+	public RFC2217FiscalPort getRFC2217FiscalPort()
+	{
+		RFC2217FiscalPort p = new RFC2217FiscalPort(host, port, connectTimeout, baudRate, dataBits, stopBits, parity, flowControl);
+		p.setKeepAlive(keepAlive);
+		p.setReconnect(reconnect);
+		return p;
+	}
+}
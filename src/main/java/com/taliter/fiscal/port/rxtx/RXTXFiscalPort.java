@@ -12,21 +12,19 @@ import com.taliter.fiscal.port.*;
 public class RXTXFiscalPort implements FiscalPort
 {
 	// TODO: Handle these events and throw exceptions in read(): FramingError, OverrunError, ParityError
- 	// TODO: Use the OutputEmpty event to wait in flushAndWait() (but see note below).
 
-	/** Get an alphabetically sorted set of available serial port names. */
+	/** flushAndWait() only flushes the output stream. Enough for drivers whose writes block until all bytes are output. */
+	public static final int DRAIN_FLUSH = 0;
+	/** flushAndWait() waits for the time the bytes written take to be output at the configured line rate (default). */
+	public static final int DRAIN_COMPUTED = 1;
+	/** flushAndWait() waits for the OutputEmpty event, but no longer than the computed time plus OUTPUT_EMPTY_MARGIN. */
+	public static final int DRAIN_OUTPUT_EMPTY = 2;
 
-	public static SortedSet getPortNames()
-	{
-		SortedSet s = new TreeSet();
-		Enumeration e = CommPortIdentifier.getPortIdentifiers();
-		while (e.hasMoreElements())
-		{
-			CommPortIdentifier i = (CommPortIdentifier) e.nextElement();
-			if (i.getPortType() == CommPortIdentifier.PORT_SERIAL) s.add(i.getName());
-		}
-		return s;
-	}
+	/** The time OutputEmpty events are waited for after the computed time, in milliseconds. */
+	public static final int OUTPUT_EMPTY_MARGIN = 50;
+
+	/** Get an alphabetically sorted set of available serial port names. The names are cached by RXTXPortRegistry. */
+	public static SortedSet getPortNames() { return RXTXPortRegistry.getPortNames(); }
 
 	private final CommPortIdentifier portID;
 	private final String appName;
@@ -36,14 +34,22 @@ public class RXTXFiscalPort implements FiscalPort
 	private final int stopBits;
 	private final int parity;
 	private final int flowControl;
+	private int receiveThreshold = -1;
+	private int interByteTimeout = 20;	// In milliseconds.
+	private int drainMode = DRAIN_COMPUTED;
 
 	private SerialPort port;
-	private InputStream in;
+	private int timeout;	// Measured by the input stream when receiving in bulk.
+	private long byteTime;	// In nanoseconds.
+	private long drainTime;	// System.nanoTime() at which the bytes written are expected to be output.
+	private boolean outputEmpty;
+	private boolean listening;	// To OutputEmpty events.
+	private FiscalPortInputStream in;
 	private OutputStream out;
 
 	public RXTXFiscalPort(String portName, String appName, int openTimeout, int baudRate, int dataBits, int stopBits, int parity, int flowControl) throws NoSuchPortException, UnsupportedCommOperationException
 	{
-		portID = CommPortIdentifier.getPortIdentifier(portName);
+		portID = RXTXPortRegistry.getPortIdentifier(portName);
 		if (portID.getPortType() != CommPortIdentifier.PORT_SERIAL) throw new UnsupportedCommOperationException("Serial port expected");
 		this.appName = appName;
 		this.openTimeout = openTimeout;
@@ -54,7 +60,7 @@ public class RXTXFiscalPort implements FiscalPort
 		this.flowControl = flowControl;
 	}
 
-	public void open() throws PortInUseException, UnsupportedCommOperationException, IOException
+	public void open() throws PortInUseException, UnsupportedCommOperationException, TooManyListenersException, IOException
 	{
 		if (port != null) throw new IllegalStateException("Port open");
 		CommPort commPort = portID.open(appName, openTimeout);
@@ -64,23 +70,46 @@ public class RXTXFiscalPort implements FiscalPort
 			port = (SerialPort) commPort;
 			port.setSerialPortParams(baudRate, dataBits, stopBits, parity);
 			port.setFlowControlMode(flowControl);
-			in = new FilterInputStream(port.getInputStream())
+			timeout = -1;
+			configureReceive();
+			final InputStream pin = port.getInputStream();
+			in = new FiscalPortInputStream()
+			{
+				public int readOrTimeout(byte b[], int off, int len) throws IOException
+				{
+					if (receiveThreshold <= 0)
+					{
+						int i = pin.read(b, off, len);
+						return i > 0 ? i : TIMEOUT;	// The underlying stream returns on receive timeouts.
+					}
+					long deadline = timeout >= 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+					for (;;)
+					{
+						int i = pin.read(b, off, len);	// Returns on threshold or inter-byte timeout.
+						if (i > 0) return i;
+						if (System.currentTimeMillis() >= deadline) return TIMEOUT;
+					}
+				}
+				public int available() throws IOException { return pin.available(); }
+			}
+			;
+			out = new FilterOutputStream(port.getOutputStream())
 			{
-				public int read() throws IOException
+				public void write(int b) throws IOException
 				{
-					int i = this.in.read();
-					if (i < 0) throw new FiscalPortTimeoutException();
-					return i;
+					writing(1);
+					out.write(b);
 				}
-				public int read(byte b[], int off, int len) throws IOException
+				public void write(byte[] b, int off, int len) throws IOException
 				{
-					int i = this.in.read(b, off, len);
-					if (i <= 0) throw new FiscalPortTimeoutException();
-					return i;
+					writing(len);
+					out.write(b, off, len);
 				}
 			}
 			;
-			out = port.getOutputStream();
+			byteTime = getByteTime(baudRate);
+			drainTime = 0;
+			configureDrain();
 			success = true;
 		}
 		finally
@@ -106,6 +135,11 @@ public class RXTXFiscalPort implements FiscalPort
 				in = null;	// WARNING: Not closing streams.
 				out = null;
 				port = null;
+				if (listening)
+				{
+					listening = false;
+					p.removeEventListener();
+				}
 				p.close();
 			}
 		}
@@ -123,11 +157,50 @@ public class RXTXFiscalPort implements FiscalPort
 	{
 		if (port != null) port.setSerialPortParams(baudRate, port.getDataBits(), port.getStopBits(), port.getParity());
 		this.baudRate = baudRate;
+		byteTime = getByteTime(baudRate);
 	}
 
 	public int getBaudRate() { return baudRate; }
 
-	public void setTimeout(int ms) throws UnsupportedCommOperationException
+	/** Set the receive threshold. If positive, bytes are received in bulk: reads return when the threshold
+	is reached or when no byte arrives for the inter-byte timeout, and receive timeouts are measured by the port
+	input stream. -1 means no threshold (default). The port may be open or closed. */
+	public void setReceiveThreshold(int receiveThreshold) throws UnsupportedCommOperationException
+	{
+		this.receiveThreshold = receiveThreshold;
+		if (port != null) configureReceive();
+	}
+
+	/** Get the receive threshold. -1 means no threshold (default). */
+	public int getReceiveThreshold() { return receiveThreshold; }
+
+	/** Set the inter-byte timeout in milliseconds used when receiving in bulk. The port may be open or closed. */
+	public void setInterByteTimeout(int interByteTimeout) throws UnsupportedCommOperationException
+	{
+		if (interByteTimeout < 1) throw new IllegalArgumentException();
+		this.interByteTimeout = interByteTimeout;
+		if (port != null) configureReceive();
+	}
+
+	/** Get the inter-byte timeout in milliseconds used when receiving in bulk. */
+	public int getInterByteTimeout() { return interByteTimeout; }
+
+	private void configureReceive() throws UnsupportedCommOperationException
+	{
+		if (receiveThreshold > 0)
+		{
+			port.enableReceiveThreshold(receiveThreshold);
+			if (!port.isReceiveThresholdEnabled()) throw new UnsupportedCommOperationException("enableReceiveThreshold()");
+			enableReceiveTimeout(interByteTimeout);
+		}
+		else
+		{
+			port.disableReceiveThreshold();
+			enableReceiveTimeout(timeout);
+		}
+	}
+
+	private void enableReceiveTimeout(int ms) throws UnsupportedCommOperationException
 	{
 		if (ms >= 0)
 		{
@@ -140,8 +213,67 @@ public class RXTXFiscalPort implements FiscalPort
 		}
 	}
 
+	/** Set how flushAndWait() waits until output is done: DRAIN_FLUSH, DRAIN_COMPUTED (default) or DRAIN_OUTPUT_EMPTY.
+	The port may be open or closed. DRAIN_OUTPUT_EMPTY registers an event listener on the underlying serial port. */
+	public void setDrainMode(int drainMode) throws TooManyListenersException
+	{
+		if (drainMode < DRAIN_FLUSH || drainMode > DRAIN_OUTPUT_EMPTY) throw new IllegalArgumentException();
+		this.drainMode = drainMode;
+		if (port != null) configureDrain();
+	}
+
+	/** Get how flushAndWait() waits until output is done. */
+	public int getDrainMode() { return drainMode; }
+
+	private void configureDrain() throws TooManyListenersException
+	{
+		if (drainMode == DRAIN_OUTPUT_EMPTY && !listening)
+		{
+			port.addEventListener(new SerialPortEventListener()
+			{
+				public void serialEvent(SerialPortEvent e)
+				{
+					if (e.getEventType() == SerialPortEvent.OUTPUT_BUFFER_EMPTY) outputDone();
+				}
+			}
+			);
+			listening = true;
+		}
+		port.notifyOnOutputEmpty(drainMode == DRAIN_OUTPUT_EMPTY);
+	}
+
+	/** Get the time a byte takes to be output at a baud rate, counting the start, parity and stop bits, in nanoseconds. */
+	private long getByteTime(int baudRate)
+	{
+		int halfBits = 2 * (1 + dataBits + (parity != SerialPort.PARITY_NONE ? 1 : 0));
+		halfBits += stopBits == SerialPort.STOPBITS_2 ? 4 : stopBits == SerialPort.STOPBITS_1_5 ? 3 : 2;
+		return halfBits * 1000000000L / (2L * baudRate);
+	}
+
+	/** Account for bytes about to be written. Called before writing, as some drivers only return once the bytes are output. */
+	private synchronized void writing(int n)
+	{
+		long now = System.nanoTime();
+		if (drainTime - now < 0) drainTime = now;
+		drainTime += n * byteTime;
+		outputEmpty = false;	// Before writing, so that an OutputEmpty event during the write is kept.
+	}
+
+	private synchronized void outputDone()
+	{
+		outputEmpty = true;
+		notifyAll();
+	}
+
+	public void setTimeout(int ms) throws UnsupportedCommOperationException
+	{
+		if (receiveThreshold <= 0) enableReceiveTimeout(ms);
+		timeout = ms;
+	}
+
 	public int getTimeout()
 	{
+		if (receiveThreshold > 0) return timeout;
 		if (port.isReceiveTimeoutEnabled()) return port.getReceiveTimeout();
 		else return -1;
 	}
@@ -149,13 +281,33 @@ public class RXTXFiscalPort implements FiscalPort
 	public InputStream getInputStream() throws IOException { return in; }
 	public OutputStream getOutputStream() throws IOException { return out; }
 
-	// NOTE: The waiting should be based on the OutputEmpty event, but...
-	// Sun's Java Communications API Version 2.0 implementation for Win32
-	// does not return from the write method until all bytes are output,
-	// so this complication is not necessary under this implementation.
-	// In addition, it has a bug that generates spurious OutputEmpty
-	// events making it unreliable to use these events. (However in this
-	// case it wouldn't cause problems.)
-	// NOTE: Behavior of RXTX is unknown and untested.
-	public void flushAndWait() throws IOException { out.flush(); }
+	// NOTE: Sun's Java Communications API Version 2.0 implementation for Win32
+	// does not return from the write method until all bytes are output; as the
+	// computed time counts from the start of the write, it has then already
+	// passed when waiting. Other
+	// drivers return as soon as the bytes are buffered. The Win32 implementation
+	// also has a bug that generates spurious OutputEmpty events, which is why
+	// these events are not used by default and are bounded by the computed time.
+	public void flushAndWait() throws IOException
+	{
+		out.flush();
+		if (drainMode == DRAIN_FLUSH) return;
+		synchronized (this)
+		{
+			long deadline = drainTime;
+			if (drainMode == DRAIN_OUTPUT_EMPTY) deadline += OUTPUT_EMPTY_MARGIN * 1000000L;
+			for (;;)
+			{
+				if (drainMode == DRAIN_OUTPUT_EMPTY && outputEmpty) return;
+				long w = deadline - System.nanoTime();
+				if (w <= 0) return;
+				try { wait(w / 1000000, (int) (w % 1000000)); }
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
 }
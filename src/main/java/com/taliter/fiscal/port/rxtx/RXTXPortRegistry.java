@@ -0,0 +1,127 @@
+package com.taliter.fiscal.port.rxtx;
+
+import java.io.*;
+import java.util.*;
+
+import gnu.io.*;
+
+/**
+A cache of the RXTX port identifiers, used by RXTXFiscalPort for port names and lookups.
+
+<p>Enumerating port identifiers can take hundreds of milliseconds on hosts with many serial adapters, so
+the identifiers are enumerated once and kept. Where a <code>/dev</code> directory exists, its modification time
+is checked on every call; when devices are plugged or unplugged, the identifiers of the removed device files
+are dropped and the added terminal device files are looked up one by one. All identifiers are enumerated again when
+the time to live expires or when refresh() is called. Names that are not cached are looked up and then cached.
+*/
+public final class RXTXPortRegistry
+{
+	private static final File DEV = new File("/dev");
+	private static final String DEV_PREFIX = "/dev/";
+	private static final String[] TERMINAL_PREFIXES = { "tty", "cu.", "rfcomm" };
+
+	private static long timeToLive = 30000;	// In milliseconds.
+	private static Map identifiers;	// Name to CommPortIdentifier, null until enumerated.
+	private static long enumerationTime;
+	private static long devModified;
+	private static Set devNames;
+
+	private RXTXPortRegistry() {}
+
+	/** Set the time in milliseconds after which all identifiers are enumerated again. -1 means never (default 30000). */
+	public static synchronized void setTimeToLive(long timeToLive) { RXTXPortRegistry.timeToLive = timeToLive; }
+	/** Get the time in milliseconds after which all identifiers are enumerated again. -1 means never (default 30000). */
+	public static synchronized long getTimeToLive() { return timeToLive; }
+
+	/** Enumerate all identifiers again on the next call. */
+	public static synchronized void refresh() { identifiers = null; }
+
+	/** Get an alphabetically sorted set of available serial port names. */
+	public static synchronized SortedSet getPortNames()
+	{
+		validate();
+		SortedSet s = new TreeSet();
+		for (Iterator i = identifiers.values().iterator(); i.hasNext();)
+		{
+			CommPortIdentifier id = (CommPortIdentifier) i.next();
+			if (id.getPortType() == CommPortIdentifier.PORT_SERIAL) s.add(id.getName());
+		}
+		return s;
+	}
+
+	/** Get the identifier of a port. */
+	public static synchronized CommPortIdentifier getPortIdentifier(String portName) throws NoSuchPortException
+	{
+		if (portName == null) throw new NullPointerException();
+		validate();
+		CommPortIdentifier id = (CommPortIdentifier) identifiers.get(portName);
+		if (id == null)
+		{
+			id = CommPortIdentifier.getPortIdentifier(portName);
+			identifiers.put(portName, id);
+		}
+		return id;
+	}
+
+	private static void validate()
+	{
+		if (identifiers == null || timeToLive >= 0 && System.currentTimeMillis() - enumerationTime >= timeToLive) enumerate();
+		else if (DEV.lastModified() != devModified) update();
+	}
+
+	private static void enumerate()
+	{
+		long m = DEV.lastModified();
+		Set names = listDev();
+		Map ids = new HashMap();
+		Enumeration e = CommPortIdentifier.getPortIdentifiers();
+		while (e.hasMoreElements())
+		{
+			CommPortIdentifier id = (CommPortIdentifier) e.nextElement();
+			ids.put(id.getName(), id);
+		}
+		identifiers = ids;
+		enumerationTime = System.currentTimeMillis();
+		devModified = m;
+		devNames = names;
+	}
+
+	/** Apply the device files added and removed since the last check. */
+	private static void update()
+	{
+		long m = DEV.lastModified();
+		Set names = listDev();
+		for (Iterator i = identifiers.keySet().iterator(); i.hasNext();)
+		{
+			String n = (String) i.next();
+			if (!n.startsWith(DEV_PREFIX)) continue;
+			String d = n.substring(DEV_PREFIX.length());
+			if (devNames.contains(d) && !names.contains(d)) i.remove();
+		}
+		for (Iterator i = names.iterator(); i.hasNext();)
+		{
+			String d = (String) i.next();
+			if (devNames.contains(d) || !isTerminal(d)) continue;
+			try
+			{
+				CommPortIdentifier id = CommPortIdentifier.getPortIdentifier(DEV_PREFIX + d);
+				identifiers.put(id.getName(), id);
+			}
+			catch (NoSuchPortException e) {}	// Found when enumerating again, if at all.
+		}
+		devModified = m;
+		devNames = names;
+	}
+
+	private static Set listDev()
+	{
+		String[] l = DEV.list();
+		return l != null ? new HashSet(Arrays.asList(l)) : new HashSet();
+	}
+
+	private static boolean isTerminal(String name)
+	{
+		for (int i = 0; i < TERMINAL_PREFIXES.length; i++) if (name.startsWith(TERMINAL_PREFIXES[i])) return true;
+		return false;
+	}
+}
@@ -1,5 +1,6 @@
 package com.taliter.fiscal.port.serial;
 
+import java.util.*;
 import javax.comm.*;
 
 import com.taliter.fiscal.port.*;
@@ -18,7 +19,10 @@ baudRate = 9600;<br>
 dataBits = SerialPort.DATABITS_8;<br>
 stopBits = SerialPort.STOPBITS_1;<br>
 parity = SerialPort.PARITY_NONE;<br>
-flowControl = SerialPort.FLOWCONTROL_NONE;</code>
+flowControl = SerialPort.FLOWCONTROL_NONE;<br>
+receiveThreshold = -1;	// No threshold.<br>
+interByteTimeout = 20;	// In milliseconds.<br>
+drainMode = SerialFiscalPort.DRAIN_COMPUTED;</code>
 
 <p>The set of available serial port names can be obtained via <code>SerialFiscalPort.getPortNames()</code>.
 */
@@ -32,6 +36,9 @@ public class SerialFiscalPortSource implements FiscalPortSource, Cloneable
 	private int stopBits = SerialPort.STOPBITS_1;
 	private int parity = SerialPort.PARITY_NONE;
 	private int flowControl = SerialPort.FLOWCONTROL_NONE;
+	private int receiveThreshold = -1;	// No threshold.
+	private int interByteTimeout = 20;	// In milliseconds.
+	private int drainMode = SerialFiscalPort.DRAIN_COMPUTED;
 
 	public SerialFiscalPortSource() {}
 	public SerialFiscalPortSource(String portName) { this.portName = portName; }
@@ -82,12 +89,31 @@ public class SerialFiscalPortSource implements FiscalPortSource, Cloneable
 	/** Get the type of flow control if any. */
 	public int getFlowControl() { return flowControl; }
 
+	/** Set the receive threshold. If positive, bytes are received in bulk (see SerialFiscalPort.setReceiveThreshold()). -1 means no threshold. */
+	public void setReceiveThreshold(int receiveThreshold) { this.receiveThreshold = receiveThreshold; }
+	/** Get the receive threshold. If positive, bytes are received in bulk (see SerialFiscalPort.setReceiveThreshold()). -1 means no threshold. */
+	public int getReceiveThreshold() { return receiveThreshold; }
+
+	/** Set the inter-byte timeout in milliseconds used when receiving in bulk. */
+	public void setInterByteTimeout(int interByteTimeout) { this.interByteTimeout = interByteTimeout; }
+	/** Get the inter-byte timeout in milliseconds used when receiving in bulk. */
+	public int getInterByteTimeout() { return interByteTimeout; }
+
+	/** Set how FiscalPort.flushAndWait() waits until output is done (see SerialFiscalPort.setDrainMode()). */
+	public void setDrainMode(int drainMode) { this.drainMode = drainMode; }
+	/** Get how FiscalPort.flushAndWait() waits until output is done (see SerialFiscalPort.setDrainMode()). */
+	public int getDrainMode() { return drainMode; }
+
 	/** Create a SerialFiscalPort object. */
-	public FiscalPort getFiscalPort() throws NoSuchPortException, UnsupportedCommOperationException { return getSerialFiscalPort(); }
+	public FiscalPort getFiscalPort() throws NoSuchPortException, UnsupportedCommOperationException, TooManyListenersException { return getSerialFiscalPort(); }
 
 	/** Create a SerialFiscalPort object. */
-	public SerialFiscalPort getSerialFiscalPort() throws NoSuchPortException, UnsupportedCommOperationException
+	public SerialFiscalPort getSerialFiscalPort() throws NoSuchPortException, UnsupportedCommOperationException, TooManyListenersException
 	{
-		return new SerialFiscalPort(portName, appName, openTimeout, baudRate, dataBits, stopBits, parity, flowControl);
+		SerialFiscalPort port = new SerialFiscalPort(portName, appName, openTimeout, baudRate, dataBits, stopBits, parity, flowControl);
+		port.setReceiveThreshold(receiveThreshold);
+		port.setInterByteTimeout(interByteTimeout);
+		port.setDrainMode(drainMode);
+		return port;
 	}
 }
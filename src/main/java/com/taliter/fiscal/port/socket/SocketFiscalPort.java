@@ -0,0 +1,349 @@
+package com.taliter.fiscal.port.socket;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import com.taliter.fiscal.port.*;
+
+/**
+A FiscalPort implementation that communicates over TCP or Unix domain sockets, for devices behind
+serial-to-Ethernet converters or ser2net-style daemons.
+
+<p>The socket channel is used in non-blocking mode. Reads wait on a selector until the receive timeout deadline,
+and writes go through a direct buffer. TCP connections have Nagle's algorithm disabled and optionally keep-alive enabled.
+If reconnection is enabled, a lost connection is established again: reads in progress then signal a receive timeout,
+so that requests are retried, and writes are retried once.
+
+<p>Unix domain sockets require Java 16 or later at run time.
+*/
+public class SocketFiscalPort implements FiscalPort
+{
+	private static final int BUFFER_SIZE = 4096;
+
+	private final String host;
+	private final int port;
+	private final String path;	// Not null for Unix domain sockets.
+	private final int connectTimeout;
+	private boolean keepAlive = true;
+	private boolean reconnect = true;
+
+	private SocketChannel channel;
+	private Selector selector;
+	private SelectionKey key;
+	private int timeout;
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);	// Received bytes not read yet, between position and limit.
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private FiscalPortInputStream in;
+	private OutputStream out;
+	private int reconnects;
+
+	/** Create a TCP port. The connect timeout is in milliseconds. */
+	public SocketFiscalPort(String host, int port, int connectTimeout)
+	{
+		if (host == null) throw new NullPointerException();
+		if (port < 1 || port > 0xFFFF) throw new IllegalArgumentException();
+		this.host = host;
+		this.port = port;
+		this.path = null;
+		this.connectTimeout = connectTimeout;
+	}
+
+	/** Create a Unix domain socket port. The connect timeout is in milliseconds. */
+	public SocketFiscalPort(String path, int connectTimeout)
+	{
+		if (path == null) throw new NullPointerException();
+		this.host = null;
+		this.port = 0;
+		this.path = path;
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void open() throws IOException
+	{
+		if (selector != null) throw new IllegalStateException("Port open");
+		selector = Selector.open();
+		boolean success = false;
+		try
+		{
+			connect();
+			timeout = -1;
+			readBuffer.clear().flip();
+			in = new FiscalPortInputStream()
+			{
+				public int readOrTimeout(byte[] b, int off, int len) throws IOException { return receive(b, off, len); }
+				public int available() throws IOException { return SocketFiscalPort.this.available(); }
+			}
+			;
+			out = new OutputStream()
+			{
+				public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					if (off < 0 || len < 0 || off > b.length - len) throw new IndexOutOfBoundsException();
+					try { send(b, off, len); }
+					catch (IOException e)
+					{
+						if (!reconnect || selector == null) throw e;
+						reconnect();
+						send(b, off, len);
+					}
+				}
+			}
+			;
+			success = true;
+		}
+		finally
+		{
+			if (!success) close();
+		}
+	}
+
+	public void close() throws IOException
+	{
+		in = null;
+		out = null;
+		key = null;
+		try { if (channel != null) channel.close(); }
+		finally
+		{
+			channel = null;
+			Selector s = selector;
+			selector = null;
+			if (s != null) s.close();
+		}
+	}
+
+	public boolean isOpen() { return selector != null; }
+
+	/** Get the host of a TCP port, or null for a Unix domain socket port. */
+	public String getHost() { return host; }
+	/** Get the TCP port number, or 0 for a Unix domain socket port. */
+	public int getPort() { return port; }
+	/** Get the path of a Unix domain socket port, or null for a TCP port. */
+	public String getPath() { return path; }
+	/** Get the connect timeout in milliseconds. */
+	public int getConnectTimeout() { return connectTimeout; }
+
+	/** True to enable TCP keep-alive (default). Applied when connecting. */
+	public void setKeepAlive(boolean keepAlive) { this.keepAlive = keepAlive; }
+	/** True to enable TCP keep-alive (default). Applied when connecting. */
+	public boolean getKeepAlive() { return keepAlive; }
+
+	/** True to connect again when the connection is lost (default). */
+	public void setReconnect(boolean reconnect) { this.reconnect = reconnect; }
+	/** True to connect again when the connection is lost (default). */
+	public boolean getReconnect() { return reconnect; }
+
+	/** Get the number of times the connection was established again since the port was created. */
+	public int getReconnects() { return reconnects; }
+
+	/** Get the underlying socket channel or null if the port is not open or not connected. */
+	public SocketChannel getSocketChannel() { return channel; }
+
+	public void setTimeout(int ms) { timeout = ms; }
+	public int getTimeout() { return timeout; }
+
+	public void setBaudRate(int baudRate) throws IOException { throw new UnsupportedOperationException(); }
+	public int getBaudRate() throws IOException { throw new UnsupportedOperationException(); }
+
+	public InputStream getInputStream() throws IOException { return in; }
+	public OutputStream getOutputStream() throws IOException { return out; }
+
+	/** Does nothing, as written bytes are already handed to the socket. */
+	public void flushAndWait() throws IOException {}
+
+	// Connection
+
+	private void connect() throws IOException
+	{
+		SocketChannel c = path != null ? openUnixChannel() : SocketChannel.open();
+		boolean success = false;
+		try
+		{
+			SocketAddress a;
+			if (path != null) a = getUnixAddress(path);
+			else
+			{
+				Socket s = c.socket();
+				s.setTcpNoDelay(true);
+				s.setKeepAlive(keepAlive);
+				a = new InetSocketAddress(host, port);
+			}
+			c.configureBlocking(false);
+			key = c.register(selector, SelectionKey.OP_CONNECT);
+			if (!c.connect(a))
+			{
+				long deadline = System.currentTimeMillis() + connectTimeout;
+				while (!c.finishConnect())
+				{
+					long w = deadline - System.currentTimeMillis();
+					if (connectTimeout >= 0 && w <= 0) throw new SocketTimeoutException("Connect timeout");
+					select(connectTimeout >= 0 ? w : 0);
+				}
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			channel = c;
+			connected();
+			success = true;
+		}
+		finally
+		{
+			if (!success)
+			{
+				channel = null;
+				c.close();
+			}
+		}
+	}
+
+	/** Called when a connection is established, when opening and when reconnecting. Does nothing by default. */
+	protected void connected() throws IOException {}
+
+	/** Discard the received bytes not read yet. */
+	protected void discardInput() { readBuffer.clear().flip(); }
+
+	private void reconnect() throws IOException
+	{
+		SocketChannel c = channel;
+		channel = null;
+		key = null;
+		readBuffer.clear().flip();
+		if (c != null)
+		{
+			c.close();
+			selector.selectNow();	// Deregister the closed channel.
+		}
+		connect();
+		reconnects++;
+	}
+
+	private void select(long ms) throws IOException
+	{
+		selector.select(ms);
+		selector.selectedKeys().clear();
+	}
+
+	private static SocketChannel openUnixChannel() throws IOException
+	{
+		try
+		{
+			Class f = Class.forName("java.net.StandardProtocolFamily");
+			Method m = SocketChannel.class.getMethod("open", new Class[] { Class.forName("java.net.ProtocolFamily") });
+			return (SocketChannel) m.invoke(null, new Object[] { Enum.valueOf(f, "UNIX") });
+		}
+		catch (InvocationTargetException e) { throw rethrow(e); }
+		catch (Exception e) { throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later"); }
+	}
+
+	private static SocketAddress getUnixAddress(String path) throws IOException
+	{
+		try
+		{
+			Method m = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", new Class[] { String.class });
+			return (SocketAddress) m.invoke(null, new Object[] { path });
+		}
+		catch (InvocationTargetException e) { throw rethrow(e); }
+		catch (Exception e) { throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later"); }
+	}
+
+	private static IOException rethrow(InvocationTargetException e)
+	{
+		Throwable t = e.getCause();
+		if (t instanceof IOException) return (IOException) t;
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		IOException x = new IOException(t.toString());
+		x.initCause(t);
+		return x;
+	}
+
+	// Transfer
+
+	/** Read received bytes into the read buffer without blocking. Returns false if the connection was lost and reconnected. */
+	private boolean fill() throws IOException
+	{
+		if (channel == null)	// A previous reconnection failed.
+		{
+			if (!reconnect) throw new IOException("Not connected");
+			reconnect();
+			return false;
+		}
+		readBuffer.compact();
+		int n;
+		try { n = channel.read(readBuffer); }
+		catch (IOException e)
+		{
+			readBuffer.flip();
+			if (!reconnect) throw e;
+			reconnect();
+			return false;
+		}
+		readBuffer.flip();
+		if (n < 0)
+		{
+			if (!reconnect) throw new EOFException("Connection closed");
+			reconnect();
+			return false;
+		}
+		return true;
+	}
+
+	private int available() throws IOException
+	{
+		if (!readBuffer.hasRemaining()) fill();
+		return readBuffer.remaining();
+	}
+
+	private int receive(byte[] b, int off, int len) throws IOException { return receive(b, off, len, getReceiveDeadline()); }
+
+	/** Get the time at which a receive starting now times out, or -1 if receives do not time out. */
+	protected long getReceiveDeadline() { return timeout >= 0 ? System.currentTimeMillis() + timeout : -1; }
+
+	/** Receive bytes from the connected socket, waiting until the specified deadline (see getReceiveDeadline()) if none are available.
+	@return the number of bytes read, or FiscalPortInputStream.TIMEOUT. */
+	protected int receive(byte[] b, int off, int len, long deadline) throws IOException
+	{
+		if (!readBuffer.hasRemaining())
+		{
+			for (;;)
+			{
+				if (!fill()) return FiscalPortInputStream.TIMEOUT;	// Reconnected, have the request retried.
+				if (readBuffer.hasRemaining()) break;
+				long w = 0;
+				if (deadline >= 0)
+				{
+					w = deadline - System.currentTimeMillis();
+					if (w <= 0) return FiscalPortInputStream.TIMEOUT;
+				}
+				select(w);
+			}
+		}
+		int l = Math.min(len, readBuffer.remaining());
+		readBuffer.get(b, off, l);
+		return l;
+	}
+
+	/** Send bytes to the connected socket, without reconnecting. */
+	protected void send(byte[] b, int off, int len) throws IOException
+	{
+		if (channel == null) throw new IOException("Not connected");
+		while (len > 0)
+		{
+			int l = Math.min(len, writeBuffer.capacity());
+			writeBuffer.clear();
+			writeBuffer.put(b, off, l).flip();
+			off += l;
+			len -= l;
+			while (writeBuffer.hasRemaining())
+			{
+				if (channel.write(writeBuffer) != 0) continue;
+				key.interestOps(SelectionKey.OP_WRITE);	// Wait until writable.
+				try { select(0); }
+				finally { key.interestOps(SelectionKey.OP_READ); }
+			}
+		}
+	}
+}
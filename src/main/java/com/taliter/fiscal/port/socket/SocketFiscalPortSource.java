@@ -0,0 +1,77 @@
+package com.taliter.fiscal.port.socket;
+
+import com.taliter.fiscal.port.*;
+
+/**
+A SocketFiscalPort factory.
+
+<p>Defaults:
+
+<p><code>host = null;<br>
+port = 0;<br>
+path = null;	// Set to use a Unix domain socket instead of TCP.<br>
+connectTimeout = 2000;	// In milliseconds.<br>
+keepAlive = true;<br>
+reconnect = true;</code>
+*/
+public class SocketFiscalPortSource implements FiscalPortSource, Cloneable
+{
+	private String host;
+	private int port;
+	private String path;	// Set to use a Unix domain socket instead of TCP.
+	private int connectTimeout = 2000;	// In milliseconds.
+	private boolean keepAlive = true;
+	private boolean reconnect = true;
+
+	public SocketFiscalPortSource() {}
+	public SocketFiscalPortSource(String host, int port) { this.host = host; this.port = port; }
+	public SocketFiscalPortSource(String path) { this.path = path; }
+
+	public Object clone()
+	{
+		try { return super.clone(); }
+		catch (CloneNotSupportedException e) { throw new Error(e.toString()); }
+	}
+
+	/** Set the host to connect to over TCP. */
+	public void setHost(String host) { this.host = host; }
+	/** Get the host to connect to over TCP. */
+	public String getHost() { return host; }
+
+	/** Set the TCP port number to connect to. */
+	public void setPort(int port) { this.port = port; }
+	/** Get the TCP port number to connect to. */
+	public int getPort() { return port; }
+
+	/** Set the path of the Unix domain socket to connect to. If set, the host and port are ignored. Requires Java 16 or later. */
+	public void setPath(String path) { this.path = path; }
+	/** Get the path of the Unix domain socket to connect to. If set, the host and port are ignored. Requires Java 16 or later. */
+	public String getPath() { return path; }
+
+	/** Set the connect timeout in milliseconds. -1 means no timeout. */
+	public void setConnectTimeout(int connectTimeout) { this.connectTimeout = connectTimeout; }
+	/** Get the connect timeout in milliseconds. -1 means no timeout. */
+	public int getConnectTimeout() { return connectTimeout; }
+
+	/** True to enable TCP keep-alive. */
+	public void setKeepAlive(boolean keepAlive) { this.keepAlive = keepAlive; }
+	/** True to enable TCP keep-alive. */
+	public boolean getKeepAlive() { return keepAlive; }
+
+	/** True to connect again when the connection is lost. */
+	public void setReconnect(boolean reconnect) { this.reconnect = reconnect; }
+	/** True to connect again when the connection is lost. */
+	public boolean getReconnect() { return reconnect; }
+
+	/** Create a SocketFiscalPort object. */
+	public FiscalPort getFiscalPort() { return getSocketFiscalPort(); }
+
+	/** Create a SocketFiscalPort object. */
+	public SocketFiscalPort getSocketFiscalPort()
+	{
+		SocketFiscalPort p = path != null ? new SocketFiscalPort(path, connectTimeout) : new SocketFiscalPort(host, port, connectTimeout);
+		p.setKeepAlive(keepAlive);
+		p.setReconnect(reconnect);
+		return p;
+	}
+}
@@ -0,0 +1,268 @@
+package com.taliter.fiscal.port.tty;
+
+import java.io.*;
+import java.util.*;
+
+import com.taliter.fiscal.port.*;
+
+/**
+A FiscalPort implementation that communicates over Linux terminal devices (<code>/dev/tty*</code>) without native libraries.
+
+<p>The terminal is configured in raw mode with the <code>stty</code> command and the device file is read and written
+directly. Reads use VMIN = 0 and VTIME = 1, so they return as soon as bytes arrive or after 100 milliseconds; receive
+timeouts are measured against a deadline and are therefore precise to 100 milliseconds. flushAndWait() waits for
+the time the bytes written take to be output at the configured line rate, like SerialFiscalPort.DRAIN_COMPUTED.
+
+<p>Besides serial ports, pseudo-terminals can be used, which allows testing without hardware.
+*/
+public class TTYFiscalPort implements FiscalPort
+{
+	public static final int PARITY_NONE = 0;
+	public static final int PARITY_ODD = 1;
+	public static final int PARITY_EVEN = 2;
+
+	public static final int STOPBITS_1 = 1;
+	public static final int STOPBITS_2 = 2;
+
+	public static final int FLOWCONTROL_NONE = 0;
+	public static final int FLOWCONTROL_XONXOFF = 1;
+	public static final int FLOWCONTROL_HARDWARE = 2;
+
+	private static final String STTY = "stty";
+	private static final String[] PORT_PREFIXES = { "ttyS", "ttyUSB", "ttyACM", "ttyAMA" };
+
+	/** Get an alphabetically sorted set of the serial terminal device paths in <code>/dev</code>. */
+	public static SortedSet getPortNames()
+	{
+		SortedSet s = new TreeSet();
+		String[] names = new File("/dev").list();
+		if (names != null)
+		{
+			for (int i = 0; i < names.length; i++)
+			{
+				for (int j = 0; j < PORT_PREFIXES.length; j++)
+				{
+					if (names[i].startsWith(PORT_PREFIXES[j]))
+					{
+						s.add("/dev/" + names[i]);
+						break;
+					}
+				}
+			}
+		}
+		return s;
+	}
+
+	private final String path;
+	private int baudRate;
+	private final int dataBits;
+	private final int stopBits;
+	private final int parity;
+	private final int flowControl;
+
+	private RandomAccessFile file;
+	private int timeout;
+	private long byteTime;	// In nanoseconds.
+	private long drainTime;	// System.nanoTime() at which the bytes written are expected to be output.
+	private FiscalPortInputStream in;
+	private OutputStream out;
+
+	public TTYFiscalPort(String path, int baudRate, int dataBits, int stopBits, int parity, int flowControl)
+	{
+		if (path == null) throw new NullPointerException();
+		if (dataBits < 5 || dataBits > 8) throw new IllegalArgumentException();
+		if (stopBits != STOPBITS_1 && stopBits != STOPBITS_2) throw new IllegalArgumentException();
+		if (parity < PARITY_NONE || parity > PARITY_EVEN) throw new IllegalArgumentException();
+		if (flowControl < FLOWCONTROL_NONE || flowControl > FLOWCONTROL_HARDWARE) throw new IllegalArgumentException();
+		this.path = path;
+		this.baudRate = baudRate;
+		this.dataBits = dataBits;
+		this.stopBits = stopBits;
+		this.parity = parity;
+		this.flowControl = flowControl;
+	}
+
+	public void open() throws IOException
+	{
+		if (file != null) throw new IllegalStateException("Port open");
+		configure();	// Sets clocal before opening, so that the open does not wait for carrier detect.
+		RandomAccessFile f = new RandomAccessFile(path, "rw");
+		boolean success = false;
+		try
+		{
+			final FileInputStream fin = new FileInputStream(f.getFD());
+			in = new FiscalPortInputStream()
+			{
+				public int readOrTimeout(byte[] b, int off, int len) throws IOException
+				{
+					long deadline = timeout >= 0 ? System.nanoTime() + timeout * 1000000L : 0;
+					for (;;)
+					{
+						int l = fin.read(b, off, len);	// Returns -1 when VTIME expires.
+						if (l > 0) return l;
+						if (timeout >= 0 && deadline - System.nanoTime() <= 0) return TIMEOUT;
+					}
+				}
+				public int available() throws IOException { return fin.available(); }
+			}
+			;
+			out = new FilterOutputStream(new FileOutputStream(f.getFD()))
+			{
+				public void write(int b) throws IOException
+				{
+					out.write(b);
+					written(1);
+				}
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					out.write(b, off, len);
+					written(len);
+				}
+			}
+			;
+			timeout = -1;
+			byteTime = getByteTime(baudRate);
+			drainTime = 0;
+			file = f;
+			success = true;
+		}
+		finally
+		{
+			if (!success)
+			{
+				in = null;
+				out = null;
+				f.close();
+			}
+		}
+	}
+
+	public void close() throws IOException
+	{
+		if (file != null)
+		{
+			try { flushAndWait(); }
+			finally
+			{
+				RandomAccessFile f = file;
+				in = null;
+				out = null;
+				file = null;
+				f.close();
+			}
+		}
+	}
+
+	public boolean isOpen() { return file != null; }
+
+	/** Get the terminal device path. */
+	public String getPath() { return path; }
+
+	/** Set the baud rate. The port may be open or closed. */
+	public void setBaudRate(int baudRate) throws IOException
+	{
+		if (file != null) stty(new String[] { String.valueOf(baudRate) });
+		this.baudRate = baudRate;
+		byteTime = getByteTime(baudRate);
+	}
+
+	public int getBaudRate() { return baudRate; }
+
+	/** Get the number of data bits. */
+	public int getDataBits() { return dataBits; }
+	/** Get the number of stop bits (STOPBITS_*). */
+	public int getStopBits() { return stopBits; }
+	/** Get the type of parity (PARITY_*). */
+	public int getParity() { return parity; }
+	/** Get the type of flow control (FLOWCONTROL_*). */
+	public int getFlowControl() { return flowControl; }
+
+	public void setTimeout(int ms) { timeout = ms; }
+	public int getTimeout() { return timeout; }
+
+	public InputStream getInputStream() throws IOException { return in; }
+	public OutputStream getOutputStream() throws IOException { return out; }
+
+	public void flushAndWait() throws IOException
+	{
+		out.flush();
+		long w = drainTime - System.nanoTime();
+		if (w <= 0) return;
+		try { Thread.sleep(w / 1000000, (int) (w % 1000000)); }
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	// Configuration
+
+	private void configure() throws IOException
+	{
+		List a = new ArrayList();
+		a.add(String.valueOf(baudRate));
+		a.add("raw");
+		a.add("-echo");
+		a.add("clocal");
+		a.add("cread");
+		a.add("-hupcl");
+		a.add("cs" + dataBits);
+		a.add(stopBits == STOPBITS_2 ? "cstopb" : "-cstopb");
+		a.add(parity != PARITY_NONE ? "parenb" : "-parenb");
+		a.add(parity == PARITY_ODD ? "parodd" : "-parodd");
+		a.add(flowControl == FLOWCONTROL_HARDWARE ? "crtscts" : "-crtscts");
+		a.add(flowControl == FLOWCONTROL_XONXOFF ? "ixon" : "-ixon");
+		a.add(flowControl == FLOWCONTROL_XONXOFF ? "ixoff" : "-ixoff");
+		a.add("min");
+		a.add("0");
+		a.add("time");
+		a.add("1");
+		stty((String[]) a.toArray(new String[a.size()]));
+	}
+
+	private void stty(String[] args) throws IOException
+	{
+		String[] command = new String[args.length + 3];
+		command[0] = STTY;
+		command[1] = "-F";
+		command[2] = path;
+		System.arraycopy(args, 0, command, 3, args.length);
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		StringBuilder output = new StringBuilder();
+		try
+		{
+			p.getOutputStream().close();
+			Reader r = new InputStreamReader(p.getInputStream());
+			char[] b = new char[256];
+			for (int l; (l = r.read(b)) >= 0;) output.append(b, 0, l);
+			if (p.waitFor() != 0) throw new IOException("stty failed: " + output.toString().trim());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		finally
+		{
+			p.getInputStream().close();
+			p.destroy();
+		}
+	}
+
+	// Output
+
+	/** Get the time a byte takes to be output at a baud rate, counting the start, parity and stop bits, in nanoseconds. */
+	private long getByteTime(int baudRate)
+	{
+		int bits = 1 + dataBits + (parity != PARITY_NONE ? 1 : 0) + stopBits;
+		return bits * 1000000000L / baudRate;
+	}
+
+	private void written(int n)
+	{
+		long now = System.nanoTime();
+		if (drainTime - now < 0) drainTime = now;
+		drainTime += n * byteTime;
+	}
+}
@@ -0,0 +1,72 @@
+package com.taliter.fiscal.port.tty;
+
+import com.taliter.fiscal.port.*;
+
+/**
+A TTYFiscalPort factory.
+
+<p>Defaults:
+
+<p><code>path = null;<br>
+baudRate = 9600;<br>
+dataBits = 8;<br>
+stopBits = TTYFiscalPort.STOPBITS_1;<br>
+parity = TTYFiscalPort.PARITY_NONE;<br>
+flowControl = TTYFiscalPort.FLOWCONTROL_NONE;</code>
+
+<p>The set of available serial terminal device paths can be obtained via <code>TTYFiscalPort.getPortNames()</code>.
+*/
+public class TTYFiscalPortSource implements FiscalPortSource, Cloneable
+{
+	private String path;
+	private int baudRate = 9600;
+	private int dataBits = 8;
+	private int stopBits = TTYFiscalPort.STOPBITS_1;
+	private int parity = TTYFiscalPort.PARITY_NONE;
+	private int flowControl = TTYFiscalPort.FLOWCONTROL_NONE;
+
+	public TTYFiscalPortSource() {}
+	public TTYFiscalPortSource(String path) { this.path = path; }
+
+	public Object clone()
+	{
+		try { return super.clone(); }
+		catch (CloneNotSupportedException e) { throw new Error(e.toString()); }
+	}
+
+	/** Set the terminal device path. */
+	public void setPath(String path) { this.path = path; }
+	/** Get the terminal device path. */
+	public String getPath() { return path; }
+
+	/** Set the baud rate. */
+	public void setBaudRate(int baudRate) { this.baudRate = baudRate; }
+	/** Get the baud rate. */
+	public int getBaudRate() { return baudRate; }
+
+	/** Set the number of data bits. */
+	public void setDataBits(int dataBits) { this.dataBits = dataBits; }
+	/** Get the number of data bits. */
+	public int getDataBits() { return dataBits; }
+
+	/** Set the number of stop bits. */
+	public void setStopBits(int stopBits) { this.stopBits = stopBits; }
+	/** Get the number of stop bits. */
+	public int getStopBits() { return stopBits; }
+
+	/** Set the type of parity if any. */
+	public void setParity(int parity) { this.parity = parity; }
+	/** Get the type of parity if any. */
+	public int getParity() { return parity; }
+
+	/** Set the type of flow control if any. */
+	public void setFlowControl(int flowControl) { this.flowControl = flowControl; }
+	/** Get the type of flow control if any. */
+	public int getFlowControl() { return flowControl; }
+
+	/** Create a TTYFiscalPort object. */
+	public FiscalPort getFiscalPort() { return getTTYFiscalPort(); }
+
+	/** Create a TTYFiscalPort object. */
+	public TTYFiscalPort getTTYFiscalPort() { return new TTYFiscalPort(path, baudRate, dataBits, stopBits, parity, flowControl); }
+}
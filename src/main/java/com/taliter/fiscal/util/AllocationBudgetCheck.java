@@ -0,0 +1,318 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import com.taliter.fiscal.device.*;
+import com.taliter.fiscal.device.hasar.*;
+import com.taliter.fiscal.port.*;
+
+/**
+A tool that measures the bytes allocated by the request path of HasarFiscalDevice and checks them against budgets.
+
+<p>Requests are executed over a port that replays responses recorded from a HasarEmulator, patching in the
+serial number of each request, so the port itself does not allocate and only the device is measured.
+For each command the tool measures, in bytes per operation: packet creation, frame formatting,
+execute() including reception and event dispatch to a no-op handler, and status word parsing.
+A budget can be configured per command for the bytes allocated by execute().
+
+<p>Allocations are measured with <code>com.sun.management.ThreadMXBean.getThreadAllocatedBytes()</code>,
+which is not available in every JVM.
+
+<p>Defaults:
+
+<p><code>commandCodes = { CMD_STATUS_REQUEST, CMD_GET_DATE_TIME, CMD_PRINT_LINE_ITEM };<br>
+iterations = 10000;<br>
+warmUpIterations = 10000;<br>
+budgets = 256 bytes for each of the default commandCodes;</code>
+*/
+public class AllocationBudgetCheck implements HasarConstants
+{
+	/** The measurements of a command. */
+	public static class Result
+	{
+		private final int commandCode;
+		private final double creation;
+		private final double formatting;
+		private final double execution;
+		private final double statusParsing;
+		private final long budget;
+
+		Result(int commandCode, double creation, double formatting, double execution, double statusParsing, long budget)
+		{
+			this.commandCode = commandCode;
+			this.creation = creation;
+			this.formatting = formatting;
+			this.execution = execution;
+			this.statusParsing = statusParsing;
+			this.budget = budget;
+		}
+
+		/** Get the command code. */
+		public int getCommandCode() { return commandCode; }
+		/** Get the bytes allocated per FiscalDevice.createFiscalPacket() call. */
+		public double getCreationBytes() { return creation; }
+		/** Get the bytes allocated per request frame formatted. */
+		public double getFormattingBytes() { return formatting; }
+		/** Get the bytes allocated per FiscalDevice.execute(request, response) call. */
+		public double getExecutionBytes() { return execution; }
+		/** Get the bytes allocated per getPrinterStatus() and getFiscalStatus() pair. */
+		public double getStatusParsingBytes() { return statusParsing; }
+		/** Get the execute() budget in bytes, or -1 if none. */
+		public long getBudget() { return budget; }
+		/** Returns true if a budget is set and execute() exceeded it. */
+		public boolean isOverBudget() { return budget >= 0 && execution > budget; }
+
+		public String toString()
+		{
+			StringBuffer b = new StringBuffer("command ");
+			ByteFormatter.toHex(b, commandCode);
+			b.append(": create: ").append(round(creation));
+			b.append(", format: ").append(round(formatting));
+			b.append(", execute: ").append(round(execution));
+			b.append(", status: ").append(round(statusParsing));
+			if (budget >= 0) b.append(", budget: ").append(budget).append(isOverBudget() ? " EXCEEDED" : " ok");
+			return b.toString();
+		}
+	}
+
+	private int[] commandCodes = new int[] { CMD_STATUS_REQUEST, CMD_GET_DATE_TIME, CMD_PRINT_LINE_ITEM };
+	private int iterations = 10000;
+	private int warmUpIterations = 10000;
+	private final Map budgets = new HashMap();
+
+	private Method getThreadAllocatedBytes;
+	private Object threadBean;
+
+	/** Create a check with a 256 byte execute() budget for each default command. */
+	public AllocationBudgetCheck() { for (int i = 0; i < commandCodes.length; i++) setBudget(commandCodes[i], 256); }
+
+	/** Set the command codes to measure. */
+	public void setCommandCodes(int[] commandCodes) { this.commandCodes = commandCodes.clone(); }
+	/** Get the command codes to measure. */
+	public int[] getCommandCodes() { return commandCodes.clone(); }
+
+	/** Set the number of measured iterations per operation. */
+	public void setIterations(int iterations) { if (iterations < 1) throw new IllegalArgumentException(); this.iterations = iterations; }
+	/** Get the number of measured iterations per operation. */
+	public int getIterations() { return iterations; }
+
+	/** Set the number of iterations run before measuring, to let the JIT compiler settle. */
+	public void setWarmUpIterations(int warmUpIterations) { this.warmUpIterations = warmUpIterations; }
+	/** Get the number of iterations run before measuring. */
+	public int getWarmUpIterations() { return warmUpIterations; }
+
+	/** Set the budget in bytes for each execute() call of a command, or -1 for none. */
+	public void setBudget(int commandCode, long bytes)
+	{
+		if (bytes < 0) budgets.remove(Integer.valueOf(commandCode));
+		else budgets.put(Integer.valueOf(commandCode), Long.valueOf(bytes));
+	}
+
+	/** Get the budget in bytes for each execute() call of a command, or -1 if none. */
+	public long getBudget(int commandCode)
+	{
+		Long b = (Long) budgets.get(Integer.valueOf(commandCode));
+		return b != null ? b.longValue() : -1;
+	}
+
+	/** Measure all configured commands. */
+	public List measure() throws Exception
+	{
+		List l = new ArrayList();
+		for (int i = 0; i < commandCodes.length; i++) l.add(measure(commandCodes[i]));
+		return l;
+	}
+
+	/** Measure all configured commands and throw an exception if any budget is exceeded. */
+	public List check() throws Exception
+	{
+		List l = measure();
+		StringBuffer b = null;
+		for (Iterator i = l.iterator(); i.hasNext(); )
+		{
+			Result r = (Result) i.next();
+			if (!r.isOverBudget()) continue;
+			if (b == null) b = new StringBuffer("Allocation budget exceeded:");
+			b.append(' ').append('(').append(r).append(')');
+		}
+		if (b != null) throw new IllegalStateException(b.toString());
+		return l;
+	}
+
+	/** Measure a command. */
+	public Result measure(int commandCode) throws Exception
+	{
+		HasarFiscalDeviceSource ds = new HasarFiscalDeviceSource();
+		ds.setClock(new VirtualClock(System.currentTimeMillis()));
+		ReplayFiscalPort port = new ReplayFiscalPort(ds.getEncoding(), ds.getBaseRolloverYear());
+		HasarFiscalDevice device = ds.getHasarFiscalDevice(port);
+		device.setEventHandler(new FiscalDeviceEventHandler()
+		{
+			public boolean onTimeout(FiscalDevice source, FiscalPacket request) { return false; }
+			public void onStatus(FiscalDevice source, FiscalPacket request, int status) {}
+			public boolean onExtendedStatus(FiscalDevice source, FiscalPacket request, FiscalPacket status) { return true; }
+			public void onExecute(FiscalDevice source, FiscalPacket request, FiscalPacket response) {}
+		}
+		);
+		port.record(CMD_STATUS_REQUEST);	// For synchronize().
+		port.record(commandCode);
+		device.open();
+		try
+		{
+			FiscalPacket request = device.createFiscalPacket();
+			request.setCommandCode(commandCode);
+			if (commandCode == CMD_PRINT_LINE_ITEM)
+			{
+				request.setString(1, "Sample item description");
+				request.setFixed(2, 15, 1);
+				request.setFixed(3, 12345, 2);
+				request.setFixed(4, 210, 1);
+				request.setString(5, "M");
+				request.setFixed(6, 0, 1);
+				request.setInt(7, 0);
+				request.setString(8, "T");
+			}
+			FiscalPacket response = device.createFiscalPacket();
+			device.execute(request, response);
+
+			double creation = 0;
+			double formatting = 0;
+			double execution = 0;
+			double statusParsing = 0;
+			for (int pass = 0; pass < 2; pass++)
+			{
+				// The first pass warms up.
+				int n = pass == 0 ? warmUpIterations : iterations;
+				if (n == 0) continue;
+				long calibration = allocatedBytes();
+				calibration = allocatedBytes() - calibration;
+				long t = allocatedBytes();
+				for (int i = 0; i < n; i++) device.createFiscalPacket();
+				creation = (double) (allocatedBytes() - t - calibration) / n;
+				t = allocatedBytes();
+				for (int i = 0; i < n; i++) HasarFrameCodec.encode(request, 0x20 + (i & 0x3F), device.getExtendedProtocol());
+				formatting = (double) (allocatedBytes() - t - calibration) / n;
+				t = allocatedBytes();
+				for (int i = 0; i < n; i++) device.execute(request, response);
+				execution = (double) (allocatedBytes() - t - calibration) / n;
+				t = allocatedBytes();
+				for (int i = 0; i < n; i++) if (response.getPrinterStatus() + response.getFiscalStatus() < 0) throw new Error();
+				statusParsing = (double) (allocatedBytes() - t - calibration) / n;
+			}
+			return new Result(commandCode, creation, formatting, execution, statusParsing, getBudget(commandCode));
+		}
+		finally { device.close(); }
+	}
+
+	private long allocatedBytes() throws Exception
+	{
+		if (getThreadAllocatedBytes == null)
+		{
+			Class c;
+			try { c = Class.forName("com.sun.management.ThreadMXBean"); }
+			catch (ClassNotFoundException e) { throw new UnsupportedOperationException("Allocation measurement not supported by this JVM"); }
+			threadBean = ManagementFactory.getThreadMXBean();
+			if (!c.isInstance(threadBean)) throw new UnsupportedOperationException("Allocation measurement not supported by this JVM");
+			getThreadAllocatedBytes = c.getMethod("getThreadAllocatedBytes", new Class[] { long.class });
+		}
+		Object r = getThreadAllocatedBytes.invoke(threadBean, new Object[] { Long.valueOf(Thread.currentThread().getId()) });
+		return ((Long) r).longValue();
+	}
+
+	private static double round(double x) { return Math.round(x * 10) / 10d; }
+
+	public static void main(String[] args) throws Exception
+	{
+		AllocationBudgetCheck c = new AllocationBudgetCheck();
+		for (Iterator i = c.check().iterator(); i.hasNext(); ) System.out.println(i.next());
+	}
+
+	/** A port that answers requests with recorded responses without allocating. */
+	private static class ReplayFiscalPort implements FiscalPort
+	{
+		private final HasarEmulator emulator;
+		private final HasarFiscalPacket packet;
+		private final HasarFrameCodec decoder = new HasarFrameCodec();
+		private final byte[][] responses = new byte[0x100][];
+		private boolean open;
+		private int timeout = -1;
+		private byte[] input;
+		private int position;
+		private int length;
+
+		ReplayFiscalPort(String encoding, int baseRolloverYear)
+		{
+			emulator = new HasarEmulator(encoding, baseRolloverYear);
+			packet = new HasarFiscalPacket(encoding, baseRolloverYear);
+		}
+
+		/** Record the emulator answer (ACK and response frame) to a request of the specified command. */
+		void record(int commandCode) throws IOException
+		{
+			packet.clear();
+			packet.setCommandCode(commandCode);
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			emulator.reset();
+			byte[] f = HasarFrameCodec.encode(packet, 0x20, false);
+			emulator.receive(f, 0, f.length, b);
+			responses[commandCode] = b.toByteArray();
+		}
+
+		public void open() { open = true; length = position = 0; decoder.reset(); }
+		public void close() { open = false; }
+		public boolean isOpen() { return open; }
+		public void setTimeout(int ms) { timeout = ms; }
+		public int getTimeout() { return timeout; }
+		public void setBaudRate(int baudRate) {}
+		public int getBaudRate() { return 9600; }
+		public void flushAndWait() {}
+
+		private final FiscalPortInputStream in = new FiscalPortInputStream()
+		{
+			public int readOrTimeout()
+			{
+				if (position == length) return TIMEOUT;
+				return input[position++] & 0xFF;
+			}
+			public int readOrTimeout(byte[] b, int off, int len)
+			{
+				if (position == length) return TIMEOUT;
+				int l = Math.min(len, length - position);
+				System.arraycopy(input, position, b, off, l);
+				position += l;
+				return l;
+			}
+			public int available() { return length - position; }
+		}
+		;
+
+		private final OutputStream out = new OutputStream()
+		{
+			public void write(int x)
+			{
+				if (decoder.decode(x) != HasarFrameCodec.DECODE_FRAME) return;
+				byte[] r = responses[decoder.getCommandCode() & 0xFF];
+				if (r == null) return;
+				// Patch the serial number (after ACK and STX) and adjust the checksum.
+				int sn = decoder.getSerialNumber();
+				int l = r.length;
+				int cs = 0;
+				for (int k = l - 4; k < l; k++) cs = (cs << 4) | Character.digit((char) r[k], 0x10);
+				cs = (cs - (r[2] & 0xFF) + sn) & 0xFFFF;
+				r[2] = (byte) sn;
+				for (int k = 12, p = l - 4; k >= 0; k -= 4) r[p++] = (byte) Character.toUpperCase(Character.forDigit((cs >> k) & 0xF, 0x10));
+				input = r;
+				position = 0;
+				length = l;
+			}
+			public void write(byte[] b, int off, int len) { for (int i = off, l = off + len; i < l; i++) write(b[i]); }
+		}
+		;
+
+		public InputStream getInputStream() { return in; }
+		public OutputStream getOutputStream() { return out; }
+	}
+}
@@ -1,58 +1,133 @@
 package com.taliter.fiscal.util;
 
-/** A formatter for bytes and byte arrays. */
+import java.io.*;
+import java.nio.*;
+
+/** A formatter for bytes and byte arrays.
+Bytes are formatted through lookup tables into StringBuffer, StringBuilder and Appendable objects,
+and as ASCII bytes into ByteBuffer objects. */
 public final class ByteFormatter
 {
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final String[] ASCII = new String[0x100];	// The ASCII representation of each byte value.
+
+	static
+	{
+		for (int b = 0; b < 0x100; b++)
+		{
+			if (b == '\\') ASCII[b] = "\\\\";
+			else if (b == '"') ASCII[b] = "\\\"";
+			else if (b >= 0x20 && b <= 0x7F) ASCII[b] = String.valueOf((char) b);
+			else ASCII[b] = new String(new char[] { '\\', 'x', HEX_DIGITS[b >> 4], HEX_DIGITS[b & 0xF] });
+		}
+	}
+
 	private ByteFormatter() {}
 
+	private static void checkBounds(byte[] b, int off, int len)
+	{
+		if (off < 0 || len < 0 || off > b.length - len) throw new ArrayIndexOutOfBoundsException();
+	}
+
 	// To Hex
 
 	public static String toHexString(byte[] b) { return toHexString(b, 0, b.length); }
-	public static String toHexString(byte[] b, int off, int len) { return toHexString(new StringBuffer(), b, off, len).toString(); }
+	public static String toHexString(byte[] b, int off, int len) { return toHexString(new StringBuilder(2 + len * 3 + 1), b, off, len).toString(); }
 	public static StringBuffer toHexString(StringBuffer buffer, byte[] b) { return toHexString(buffer, b, 0, b.length); }
 	public static StringBuffer toHexString(StringBuffer buffer, byte[] b, int off, int len)
 	{
-		if (off < 0 || len < 0 || off > b.length - len) throw new ArrayIndexOutOfBoundsException();
+		try { toHexString((Appendable) buffer, b, off, len); }
+		catch (IOException e) { throw new Error(e.toString()); }	// Not thrown by string buffers.
+		return buffer;
+	}
+	public static StringBuilder toHexString(StringBuilder buffer, byte[] b) { return toHexString(buffer, b, 0, b.length); }
+	public static StringBuilder toHexString(StringBuilder buffer, byte[] b, int off, int len)
+	{
+		try { toHexString((Appendable) buffer, b, off, len); }
+		catch (IOException e) { throw new Error(e.toString()); }	// Not thrown by string buffers.
+		return buffer;
+	}
+	public static Appendable toHexString(Appendable buffer, byte[] b) throws IOException { return toHexString(buffer, b, 0, b.length); }
+	public static Appendable toHexString(Appendable buffer, byte[] b, int off, int len) throws IOException
+	{
+		checkBounds(b, off, len);
 		buffer.append('{');
-		for (int i = off, l = off + len; i < l; i++) 
+		for (int i = off, l = off + len; i < l; i++)
 		{
-			buffer.append(' ');
-			toHex(buffer, b[i]);
+			int x = b[i];
+			buffer.append(' ').append(HEX_DIGITS[x >> 4 & 0xF]).append(HEX_DIGITS[x & 0xF]);
 		}
-		buffer.append(' ');
-		buffer.append('}');
+		buffer.append(' ').append('}');
 		return buffer;
 	}
-
-	public static String toHex(int b) { return toHex(new StringBuffer(), b).toString(); }
-	public static StringBuffer toHex(StringBuffer buffer, int b)
+	/** Put the hex representation of bytes into a buffer, as ASCII bytes.
+	@throws BufferOverflowException if the buffer has less than len * 3 + 3 bytes remaining. */
+	public static ByteBuffer toHexString(ByteBuffer buffer, byte[] b, int off, int len)
 	{
-		buffer.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 0x10)));
-		buffer.append(Character.toUpperCase(Character.forDigit(b & 0xF, 0x10)));
+		checkBounds(b, off, len);
+		if (buffer.remaining() < len * 3 + 3) throw new BufferOverflowException();
+		buffer.put((byte) '{');
+		for (int i = off, l = off + len; i < l; i++)
+		{
+			int x = b[i];
+			buffer.put((byte) ' ').put((byte) HEX_DIGITS[x >> 4 & 0xF]).put((byte) HEX_DIGITS[x & 0xF]);
+		}
+		buffer.put((byte) ' ').put((byte) '}');
 		return buffer;
 	}
 
+	public static String toHex(int b) { return new String(new char[] { HEX_DIGITS[b >> 4 & 0xF], HEX_DIGITS[b & 0xF] }); }
+	public static StringBuffer toHex(StringBuffer buffer, int b) { return buffer.append(HEX_DIGITS[b >> 4 & 0xF]).append(HEX_DIGITS[b & 0xF]); }
+	public static StringBuilder toHex(StringBuilder buffer, int b) { return buffer.append(HEX_DIGITS[b >> 4 & 0xF]).append(HEX_DIGITS[b & 0xF]); }
+	public static Appendable toHex(Appendable buffer, int b) throws IOException { return buffer.append(HEX_DIGITS[b >> 4 & 0xF]).append(HEX_DIGITS[b & 0xF]); }
+	public static ByteBuffer toHex(ByteBuffer buffer, int b) { return buffer.put((byte) HEX_DIGITS[b >> 4 & 0xF]).put((byte) HEX_DIGITS[b & 0xF]); }
+
 	// To ASCII
 
 	public static String toASCIIString(byte[] b) { return toASCIIString(b, 0, b.length); }
-	public static String toASCIIString(byte[] b, int off, int len) { return toASCIIString(new StringBuffer(), b, off, len).toString(); }
+	public static String toASCIIString(byte[] b, int off, int len) { return toASCIIString(new StringBuilder(len + 2), b, off, len).toString(); }
 	public static StringBuffer toASCIIString(StringBuffer buffer, byte[] b) { return toASCIIString(buffer, b, 0, b.length); }
 	public static StringBuffer toASCIIString(StringBuffer buffer, byte[] b, int off, int len)
 	{
-		if (off < 0 || len < 0 || off > b.length - len) throw new ArrayIndexOutOfBoundsException();
+		try { toASCIIString((Appendable) buffer, b, off, len); }
+		catch (IOException e) { throw new Error(e.toString()); }	// Not thrown by string buffers.
+		return buffer;
+	}
+	public static StringBuilder toASCIIString(StringBuilder buffer, byte[] b) { return toASCIIString(buffer, b, 0, b.length); }
+	public static StringBuilder toASCIIString(StringBuilder buffer, byte[] b, int off, int len)
+	{
+		try { toASCIIString((Appendable) buffer, b, off, len); }
+		catch (IOException e) { throw new Error(e.toString()); }	// Not thrown by string buffers.
+		return buffer;
+	}
+	public static Appendable toASCIIString(Appendable buffer, byte[] b) throws IOException { return toASCIIString(buffer, b, 0, b.length); }
+	public static Appendable toASCIIString(Appendable buffer, byte[] b, int off, int len) throws IOException
+	{
+		checkBounds(b, off, len);
 		buffer.append('"');
-		for (int i = off, l = off + len; i < l; i++) toASCII(buffer, b[i]);
+		for (int i = off, l = off + len; i < l; i++) buffer.append(ASCII[b[i] & 0xFF]);
 		buffer.append('"');
 		return buffer;
 	}
+	/** Put the ASCII representation of bytes into a buffer, as ASCII bytes.
+	@throws BufferOverflowException if the buffer fills up. */
+	public static ByteBuffer toASCIIString(ByteBuffer buffer, byte[] b, int off, int len)
+	{
+		checkBounds(b, off, len);
+		buffer.put((byte) '"');
+		for (int i = off, l = off + len; i < l; i++) toASCII(buffer, b[i]);
+		buffer.put((byte) '"');
+		return buffer;
+	}
 
-	public static String toASCII(int b) { return toASCII(new StringBuffer(), b).toString(); }
-	public static StringBuffer toASCII(StringBuffer buffer, int b)
+	public static String toASCII(int b) { return ASCII[b & 0xFF]; }
+	public static StringBuffer toASCII(StringBuffer buffer, int b) { return buffer.append(ASCII[b & 0xFF]); }
+	public static StringBuilder toASCII(StringBuilder buffer, int b) { return buffer.append(ASCII[b & 0xFF]); }
+	public static Appendable toASCII(Appendable buffer, int b) throws IOException { return buffer.append(ASCII[b & 0xFF]); }
+	public static ByteBuffer toASCII(ByteBuffer buffer, int b)
 	{
-		if (b == '\\') buffer.append('\\').append('\\');
-		else if (b == '"') buffer.append('\\').append('"');
-		else if (b >= 0x20 && b <= 0x7F) buffer.append((char) b);
-		else toHex(buffer.append('\\').append('x'), b);
+		String s = ASCII[b & 0xFF];
+		for (int i = 0, l = s.length(); i < l; i++) buffer.put((byte) s.charAt(i));
 		return buffer;
 	}
 }
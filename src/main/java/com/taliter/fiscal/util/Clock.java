@@ -0,0 +1,20 @@
+package com.taliter.fiscal.util;
+
+/** A source of time used to measure timeouts and to wait.
+Allows protocol simulations to run in virtual time. */
+public interface Clock
+{
+	/** The system clock. */
+	public Clock SYSTEM = new SystemClock();
+
+	/** Get the current time in milliseconds. */
+	public long currentTimeMillis();
+
+	/** Sleep for the specified number of milliseconds. */
+	public void sleep(long ms) throws InterruptedException;
+
+	/** Wait on the monitor of the passed object, which must be held by the calling thread.
+	Returns after the specified number of milliseconds or earlier if notified, or waits indefinitely if ms is 0.
+	As with Object.wait(), callers must check their wait condition and deadline in a loop. */
+	public void wait(Object monitor, long ms) throws InterruptedException;
+}
@@ -0,0 +1,521 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.taliter.fiscal.device.hasar.*;
+
+/**
+An offline analyzer for the communication logs written by LoggerFiscalPort.
+
+<p>Log files are grouped by device. Files are memory-mapped and each device is analyzed by a separate task,
+so analysis runs in parallel over all available processors. The frames sent and received are reassembled
+with HasarFrameCodec, the same framing logic used by the devices.
+
+<p>The analysis reports per-command latency distributions, retry and NAK rates, checksum error rates,
+and an index of the log positions where receipts begin. Latencies are only measured for logs written
+with timestamps enabled (see LoggerFiscalPort.setTimestamps()).
+
+<p>Only the text logs of LoggerFiscalPort are supported. Raw wire captures carry no direction or timing
+for the bytes, so they cannot be analyzed; convert them to the LoggerFiscalPort line format first.
+*/
+public class CommLogAnalyzer
+{
+	private static final long MAP_WINDOW = 64L << 20;
+
+	private final Map devices = new LinkedHashMap();	// Device name -> list of files.
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int[] receiptCommandCodes = new int[] { HasarConstants.CMD_OPEN_FD };
+
+	/** Add a log file of a device. Files of the same device are analyzed in the order they are added. */
+	public void addFile(String device, File file)
+	{
+		List files = (List) devices.get(device);
+		if (files == null) devices.put(device, files = new ArrayList());
+		files.add(file);
+	}
+
+	/** Add a log file. The device is identified by the name of the file. */
+	public void addFile(File file) { addFile(file.getName(), file); }
+
+	/** Set the number of analysis threads. Defaults to the number of available processors. */
+	public void setThreads(int threads) { if (threads < 1) throw new IllegalArgumentException(); this.threads = threads; }
+	/** Get the number of analysis threads. */
+	public int getThreads() { return threads; }
+
+	/** Set the command codes of the requests that begin a receipt. Defaults to CMD_OPEN_FD. */
+	public void setReceiptCommandCodes(int[] receiptCommandCodes) { this.receiptCommandCodes = receiptCommandCodes.clone(); }
+	/** Get the command codes of the requests that begin a receipt. */
+	public int[] getReceiptCommandCodes() { return receiptCommandCodes.clone(); }
+
+	/** Analyze all added files. */
+	public Report analyze() throws IOException, InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, devices.size())));
+		try
+		{
+			List futures = new ArrayList();
+			Iterator i = devices.entrySet().iterator();
+			while (i.hasNext())
+			{
+				Map.Entry e = (Map.Entry) i.next();
+				futures.add(executor.submit(new DeviceTask((String) e.getKey(), (List) e.getValue(), receiptCommandCodes)));
+			}
+			Report report = new Report();
+			for (i = futures.iterator(); i.hasNext(); )
+			{
+				DeviceReport r;
+				try { r = (DeviceReport) ((Future) i.next()).get(); }
+				catch (ExecutionException e)
+				{
+					Throwable t = e.getCause();
+					if (t instanceof IOException) throw (IOException) t;
+					if (t instanceof RuntimeException) throw (RuntimeException) t;
+					if (t instanceof Error) throw (Error) t;
+					throw new RuntimeException(t);
+				}
+				report.add(r);
+			}
+			return report;
+		}
+		finally { executor.shutdownNow(); }
+	}
+
+	// Results
+
+	/** Statistics of a command. */
+	public static class CommandStats
+	{
+		private final int commandCode;
+		private int requests;
+		private int retries;
+		private int responses;
+		private int[] latencies = new int[16];
+		private int latencyCount;
+		private boolean sorted = true;
+
+		CommandStats(int commandCode) { this.commandCode = commandCode; }
+
+		/** Get the command code. */
+		public int getCommandCode() { return commandCode; }
+		/** Get the number of distinct requests sent. */
+		public int getRequests() { return requests; }
+		/** Get the number of times requests were resent. */
+		public int getRetries() { return retries; }
+		/** Get the number of responses received. */
+		public int getResponses() { return responses; }
+		/** Get the ratio of retries to requests. */
+		public double getRetryRate() { return requests != 0 ? (double) retries / requests : 0; }
+
+		/** Get the number of latencies measured. */
+		public int getLatencyCount() { return latencyCount; }
+
+		/** Get a sorted copy of the measured latencies in milliseconds. */
+		public int[] getLatencies()
+		{
+			sort();
+			int[] l = new int[latencyCount];
+			System.arraycopy(latencies, 0, l, 0, latencyCount);
+			return l;
+		}
+
+		/** Get a latency percentile in milliseconds (0 to 100), or -1 if no latencies were measured. */
+		public int getLatencyPercentile(double percentile)
+		{
+			if (percentile < 0 || percentile > 100) throw new IllegalArgumentException();
+			if (latencyCount == 0) return -1;
+			sort();
+			int i = (int) Math.ceil(percentile / 100 * latencyCount) - 1;
+			return latencies[i < 0 ? 0 : i];
+		}
+
+		private void sort()
+		{
+			if (!sorted)
+			{
+				Arrays.sort(latencies, 0, latencyCount);
+				sorted = true;
+			}
+		}
+
+		void addLatency(int latency)
+		{
+			if (latencyCount == latencies.length)
+			{
+				int[] l = new int[latencyCount * 2];
+				System.arraycopy(latencies, 0, l, 0, latencyCount);
+				latencies = l;
+			}
+			latencies[latencyCount++] = latency;
+			sorted = false;
+		}
+
+		void add(CommandStats s)
+		{
+			requests += s.requests;
+			retries += s.retries;
+			responses += s.responses;
+			for (int i = 0; i < s.latencyCount; i++) addLatency(s.latencies[i]);
+		}
+	}
+
+	/** The position in a log where a receipt begins. */
+	public static class Receipt
+	{
+		private final String device;
+		private final File file;
+		private final long offset;
+		private final long line;
+		private final int commandCode;
+
+		Receipt(String device, File file, long offset, long line, int commandCode)
+		{
+			this.device = device;
+			this.file = file;
+			this.offset = offset;
+			this.line = line;
+			this.commandCode = commandCode;
+		}
+
+		/** Get the device name. */
+		public String getDevice() { return device; }
+		/** Get the log file. */
+		public File getFile() { return file; }
+		/** Get the byte offset of the log line where the receipt request was sent. */
+		public long getOffset() { return offset; }
+		/** Get the one-based number of the log line where the receipt request was sent. */
+		public long getLine() { return line; }
+		/** Get the command code of the request that began the receipt. */
+		public int getCommandCode() { return commandCode; }
+
+		public String toString() { return device + ": " + file + " (line " + line + ", offset " + offset + ")"; }
+	}
+
+	/** Statistics shared by device reports and the global report. */
+	public static class Stats
+	{
+		int framesSent;
+		int framesReceived;
+		int naksSent;
+		int naksReceived;
+		int checksumErrors;
+		int framingErrors;
+		int timeouts;
+		final CommandStats[] commands = new CommandStats[0x100];
+
+		/** Get the number of frames sent, including retries. */
+		public int getFramesSent() { return framesSent; }
+		/** Get the number of frames received with a valid checksum. */
+		public int getFramesReceived() { return framesReceived; }
+		/** Get the number of NAKs sent to the device. */
+		public int getNaksSent() { return naksSent; }
+		/** Get the number of NAKs received from the device. */
+		public int getNaksReceived() { return naksReceived; }
+		/** Get the number of frames received with an invalid checksum. */
+		public int getChecksumErrors() { return checksumErrors; }
+		/** Get the number of received frames that were abandoned due to invalid bytes. */
+		public int getFramingErrors() { return framingErrors; }
+		/** Get the number of read timeouts. */
+		public int getTimeouts() { return timeouts; }
+
+		/** Get the ratio of NAKs received to frames sent. */
+		public double getNakRate() { return framesSent != 0 ? (double) naksReceived / framesSent : 0; }
+		/** Get the ratio of frames received with an invalid checksum to all frames received. */
+		public double getChecksumErrorRate() { int n = framesReceived + checksumErrors; return n != 0 ? (double) checksumErrors / n : 0; }
+
+		/** Get the statistics of a command, or null if the command was never sent. */
+		public CommandStats getCommandStats(int commandCode) { return commands[commandCode & 0xFF]; }
+
+		/** Get the statistics of all sent commands ordered by command code. */
+		public List getCommandStats()
+		{
+			List l = new ArrayList();
+			for (int i = 0; i < commands.length; i++) if (commands[i] != null) l.add(commands[i]);
+			return l;
+		}
+
+		CommandStats command(int commandCode)
+		{
+			CommandStats s = commands[commandCode];
+			if (s == null) commands[commandCode] = s = new CommandStats(commandCode);
+			return s;
+		}
+
+		void add(Stats s)
+		{
+			framesSent += s.framesSent;
+			framesReceived += s.framesReceived;
+			naksSent += s.naksSent;
+			naksReceived += s.naksReceived;
+			checksumErrors += s.checksumErrors;
+			framingErrors += s.framingErrors;
+			timeouts += s.timeouts;
+			for (int i = 0; i < commands.length; i++) if (s.commands[i] != null) command(i).add(s.commands[i]);
+		}
+
+		void print(PrintWriter w, String indent)
+		{
+			w.println(indent + "frames sent: " + framesSent + ", received: " + framesReceived + ", timeouts: " + timeouts);
+			w.println(indent + "NAKs received: " + naksReceived + " (rate " + format(getNakRate()) + "), sent: " + naksSent);
+			w.println(indent + "checksum errors: " + checksumErrors + " (rate " + format(getChecksumErrorRate()) + "), framing errors: " + framingErrors);
+			for (int i = 0; i < commands.length; i++)
+			{
+				CommandStats s = commands[i];
+				if (s == null) continue;
+				StringBuffer b = new StringBuffer(indent).append("command ");
+				ByteFormatter.toHex(b, i);
+				b.append(": requests: ").append(s.requests);
+				b.append(", retries: ").append(s.retries).append(" (rate ").append(format(s.getRetryRate())).append(')');
+				b.append(", responses: ").append(s.responses);
+				if (s.latencyCount != 0)
+				{
+					b.append(", latency ms: p50 ").append(s.getLatencyPercentile(50));
+					b.append(", p90 ").append(s.getLatencyPercentile(90));
+					b.append(", p99 ").append(s.getLatencyPercentile(99));
+					b.append(", max ").append(s.getLatencyPercentile(100));
+				}
+				w.println(b);
+			}
+		}
+
+		private static String format(double rate) { return String.valueOf(Math.round(rate * 10000) / 10000d); }
+	}
+
+	/** The analysis results of a device. */
+	public static class DeviceReport extends Stats
+	{
+		private final String device;
+		private final List receipts = new ArrayList();
+
+		DeviceReport(String device) { this.device = device; }
+
+		/** Get the device name. */
+		public String getDevice() { return device; }
+
+		/** Get the list of receipts in log order. */
+		public List getReceipts() { return Collections.unmodifiableList(receipts); }
+
+		/** Get a receipt by its zero-based index in log order. */
+		public Receipt getReceipt(int index) { return (Receipt) receipts.get(index); }
+	}
+
+	/** The analysis results of all devices. */
+	public static class Report extends Stats
+	{
+		private final Map devices = new LinkedHashMap();
+
+		void add(DeviceReport r)
+		{
+			devices.put(r.getDevice(), r);
+			super.add(r);
+		}
+
+		/** Get the names of the analyzed devices. */
+		public Set getDevices() { return Collections.unmodifiableSet(devices.keySet()); }
+
+		/** Get the results of a device, or null if the device was not analyzed. */
+		public DeviceReport getDeviceReport(String device) { return (DeviceReport) devices.get(device); }
+
+		/** Print a human readable report. */
+		public void print(PrintWriter w)
+		{
+			w.println("all devices:");
+			print(w, "  ");
+			Iterator i = devices.values().iterator();
+			while (i.hasNext())
+			{
+				DeviceReport r = (DeviceReport) i.next();
+				w.println("device " + r.getDevice() + ": receipts: " + r.receipts.size());
+				r.print(w, "  ");
+			}
+			w.flush();
+		}
+	}
+
+	// Analysis
+
+	private static class DeviceTask implements Callable
+	{
+		private static final byte[] WRITE = bytes("port: write: ");
+		private static final byte[] READ = bytes("port: read: ");
+		private static final byte[] TIMEOUT = bytes("timeout");
+
+		private final List files;
+		private final int[] receiptCommandCodes;
+		private final DeviceReport report;
+
+		private final HasarFrameCodec sent = new HasarFrameCodec();
+		private final HasarFrameCodec received = new HasarFrameCodec();
+		private int lastSentSerialNumber = -1;
+		private int lastSentChecksum;
+		private int pendingCommandCode = -1;
+		private long pendingTime;
+
+		private File file;
+		private long lineOffset;
+		private long lineNumber;
+
+		DeviceTask(String device, List files, int[] receiptCommandCodes)
+		{
+			this.files = files;
+			this.receiptCommandCodes = receiptCommandCodes;
+			report = new DeviceReport(device);
+		}
+
+		private static byte[] bytes(String s)
+		{
+			byte[] b = new byte[s.length()];
+			for (int i = 0; i < b.length; i++) b[i] = (byte) s.charAt(i);
+			return b;
+		}
+
+		public Object call() throws IOException
+		{
+			Iterator i = files.iterator();
+			while (i.hasNext()) analyze((File) i.next());
+			return report;
+		}
+
+		private void analyze(File f) throws IOException
+		{
+			file = f;
+			lineNumber = 0;
+			FileInputStream is = new FileInputStream(f);
+			try
+			{
+				FileChannel fc = is.getChannel();
+				long size = fc.size();
+				long position = 0;
+				while (position < size)
+				{
+					long length = Math.min(MAP_WINDOW, size - position);
+					boolean last = position + length == size;
+					ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, position, length);
+					int l = (int) length;
+					int start = 0;
+					for (int p = 0; p < l; p++)
+					{
+						if (b.get(p) != '\n') continue;
+						lineOffset = position + start;
+						line(b, start, p);
+						start = p + 1;
+					}
+					if (start < l && (last || start == 0))
+					{
+						// The last line of the file, or a line longer than the window.
+						lineOffset = position + start;
+						line(b, start, l);
+						start = l;
+					}
+					position += start;
+				}
+			}
+			finally { is.close(); }
+		}
+
+		private void line(ByteBuffer b, int p, int end)
+		{
+			lineNumber++;
+			if (end > p && b.get(end - 1) == '\r') end--;
+			long time = -1;
+			if (p < end && isDigit(b.get(p)))
+			{
+				time = 0;
+				while (p < end && isDigit(b.get(p))) time = time * 10 + (b.get(p++) - '0');
+				while (p < end && b.get(p) == ' ') p++;
+			}
+			if (startsWith(b, p, end, WRITE)) bytes(b, p + WRITE.length, end, time, true);
+			else if (startsWith(b, p, end, READ))
+			{
+				p += READ.length;
+				if (startsWith(b, p, end, TIMEOUT)) report.timeouts++;
+				else bytes(b, p, end, time, false);
+			}
+		}
+
+		private void bytes(ByteBuffer b, int p, int end, long time, boolean write)
+		{
+			for (; p < end; p++)
+			{
+				int h = Character.digit((char) b.get(p), 0x10);
+				if (h < 0) continue;	// Braces and spaces.
+				if (++p >= end) break;
+				int l = Character.digit((char) b.get(p), 0x10);
+				if (l < 0) continue;
+				int x = (h << 4) | l;
+				if (write) sentByte(x, time);
+				else receivedByte(x, time);
+			}
+		}
+
+		private void sentByte(int x, long time)
+		{
+			switch (sent.decode(x))
+			{
+				case HasarFrameCodec.DECODE_FRAME:
+				case HasarFrameCodec.DECODE_CHECKSUM_ERROR:	// Sent as is, the device will NAK it.
+					report.framesSent++;
+					int sn = sent.getSerialNumber();
+					int cs = sent.getReceivedChecksum();
+					int c = sent.getCommandCode();
+					if (c < 0) break;
+					CommandStats s = report.command(c);
+					if (sn == lastSentSerialNumber && cs == lastSentChecksum) s.retries++;
+					else
+					{
+						s.requests++;
+						lastSentSerialNumber = sn;
+						lastSentChecksum = cs;
+						pendingCommandCode = c;
+						pendingTime = time;
+						for (int i = 0; i < receiptCommandCodes.length; i++)
+						{
+							if (receiptCommandCodes[i] != c) continue;
+							report.receipts.add(new Receipt(report.getDevice(), file, lineOffset, lineNumber, c));
+							break;
+						}
+					}
+					break;
+				case HasarFrameCodec.DECODE_CONTROL:
+					if (sent.getControl() == HasarFrameCodec.ASCII_NAK) report.naksSent++;
+					break;
+			}
+		}
+
+		private void receivedByte(int x, long time)
+		{
+			switch (received.decode(x))
+			{
+				case HasarFrameCodec.DECODE_FRAME:
+					report.framesReceived++;
+					if (pendingCommandCode < 0 || received.getSerialNumber() != lastSentSerialNumber) break;
+					CommandStats s = report.command(pendingCommandCode);
+					s.responses++;
+					if (time >= 0 && pendingTime >= 0) s.addLatency((int) Math.min(Integer.MAX_VALUE, Math.max(0, time - pendingTime)));
+					pendingCommandCode = -1;
+					break;
+				case HasarFrameCodec.DECODE_CHECKSUM_ERROR:
+					report.checksumErrors++;
+					break;
+				case HasarFrameCodec.DECODE_FRAMING_ERROR:
+					report.framingErrors++;
+					break;
+				case HasarFrameCodec.DECODE_CONTROL:
+					if (received.getControl() == HasarFrameCodec.ASCII_NAK) report.naksReceived++;
+					break;
+			}
+		}
+
+		private static boolean isDigit(byte x) { return x >= '0' && x <= '9'; }
+
+		private static boolean startsWith(ByteBuffer b, int p, int end, byte[] s)
+		{
+			if (end - p < s.length) return false;
+			for (int i = 0; i < s.length; i++) if (b.get(p + i) != s[i]) return false;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+
+import com.taliter.fiscal.port.*;
+
+/** A FiscalPort connected to an in-process HasarEmulator. */
+public class EmulatorFiscalPort implements FiscalPort
+{
+	private final HasarEmulator emulator;
+	private final Clock clock;
+	private int baudRate = 9600;
+	private boolean open;
+	private int timeout = -1;
+
+	private byte[] buffer = new byte[256];
+	private int head;
+	private int tail;
+
+	private final FiscalPortInputStream in = new FiscalPortInputStream()
+	{
+		public int readOrTimeout(byte[] b, int off, int len) throws IOException
+		{
+			synchronized (EmulatorFiscalPort.this)
+			{
+				if (!await()) return TIMEOUT;
+				int l = Math.min(len, tail - head);
+				System.arraycopy(buffer, head, b, off, l);
+				head += l;
+				return l;
+			}
+		}
+		public int available()
+		{
+			synchronized (EmulatorFiscalPort.this) { return tail - head; }
+		}
+	}
+	;
+
+	private final OutputStream toHost = new OutputStream()
+	{
+		public void write(int b)
+		{
+			synchronized (EmulatorFiscalPort.this)
+			{
+				if (tail == buffer.length) grow(1);
+				buffer[tail++] = (byte) b;
+				EmulatorFiscalPort.this.notifyAll();
+			}
+		}
+		public void write(byte[] b, int off, int len)
+		{
+			synchronized (EmulatorFiscalPort.this)
+			{
+				if (tail + len > buffer.length) grow(len);
+				System.arraycopy(b, off, buffer, tail, len);
+				tail += len;
+				EmulatorFiscalPort.this.notifyAll();
+			}
+		}
+	}
+	;
+
+	private final OutputStream out = new OutputStream()
+	{
+		public void write(int b) throws IOException
+		{
+			if (!open) throw new IOException("Port closed");
+			emulator.receive(b, toHost);
+		}
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (!open) throw new IOException("Port closed");
+			emulator.receive(b, off, len, toHost);
+		}
+	}
+	;
+
+	public EmulatorFiscalPort() { this(new HasarEmulator()); }
+	public EmulatorFiscalPort(HasarEmulator emulator) { this(emulator, Clock.SYSTEM); }
+	/** Create a port that uses the specified clock to measure receive timeouts. */
+	public EmulatorFiscalPort(HasarEmulator emulator, Clock clock)
+	{
+		if (clock == null) throw new NullPointerException();
+		this.emulator = emulator;
+		this.clock = clock;
+	}
+
+	/** Get the emulator this port is connected to. */
+	public HasarEmulator getEmulator() { return emulator; }
+
+	public synchronized void open()
+	{
+		if (open) throw new IllegalStateException("Port open");
+		head = tail = 0;
+		timeout = -1;
+		emulator.reset();
+		open = true;
+	}
+
+	public synchronized void close() { open = false; }
+
+	public synchronized boolean isOpen() { return open; }
+
+	public synchronized void setTimeout(int ms) { timeout = ms; }
+	public synchronized int getTimeout() { return timeout; }
+
+	public void setBaudRate(int baudRate) { this.baudRate = baudRate; }
+	public int getBaudRate() { return baudRate; }
+
+	public InputStream getInputStream() { return in; }
+	public OutputStream getOutputStream() { return out; }
+
+	public void flushAndWait() {}
+
+	private boolean await() throws IOException	// False on timeout.
+	{
+		// Assume the lock is held.
+		if (head < tail) return true;
+		long deadline = timeout >= 0 ? clock.currentTimeMillis() + timeout : 0;
+		while (head == tail)
+		{
+			if (!open) throw new IOException("Port closed");
+			long w = 0;
+			if (timeout >= 0)
+			{
+				w = deadline - clock.currentTimeMillis();
+				if (w <= 0) return false;
+			}
+			try { clock.wait(this, w); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		return true;
+	}
+
+	private void grow(int n)
+	{
+		// Assume the lock is held.
+		int l = tail - head;
+		byte[] b = buffer;
+		if (l + n > b.length) b = new byte[Math.max(b.length * 2, l + n)];
+		System.arraycopy(buffer, head, b, 0, l);
+		buffer = b;
+		head = 0;
+		tail = l;
+	}
+}
@@ -0,0 +1,53 @@
+package com.taliter.fiscal.util;
+
+import com.taliter.fiscal.port.*;
+
+/**
+An EmulatorFiscalPort factory. Every port is connected to a new HasarEmulator.
+
+<p>Defaults:
+
+<p><code>encoding = "Cp437";<br>
+baseRolloverYear = 1997;<br>
+clock = Clock.SYSTEM;	// Not serialized.</code>
+*/
+public class EmulatorFiscalPortSource implements FiscalPortSource, Cloneable
+{
+	private String encoding = "Cp437";
+	private int baseRolloverYear = 1997;
+	private transient Clock clock;
+
+	public EmulatorFiscalPortSource() {}
+
+	public Object clone()
+	{
+		try { return super.clone(); }
+		catch (CloneNotSupportedException e) { throw new Error(e.toString()); }
+	}
+
+	/** Set the encoding used by the emulator for strings. */
+	public void setEncoding(String encoding) { this.encoding = encoding; }
+	/** Get the encoding used by the emulator for strings. */
+	public String getEncoding() { return encoding; }
+
+	/** Set the base roll-over year used by the emulator for dates. */
+	public void setBaseRolloverYear(int baseRolloverYear) { this.baseRolloverYear = baseRolloverYear; }
+	/** Get the base roll-over year used by the emulator for dates. */
+	public int getBaseRolloverYear() { return baseRolloverYear; }
+
+	/** Set the clock used by ports and emulators. */
+	public void setClock(Clock clock) { this.clock = clock; }
+	/** Get the clock used by ports and emulators. */
+	public Clock getClock() { return clock != null ? clock : Clock.SYSTEM; }
+
+	/** Create an EmulatorFiscalPort object. */
+	public FiscalPort getFiscalPort() { return getEmulatorFiscalPort(); }
+
+	/** Create an EmulatorFiscalPort object. */
+	public EmulatorFiscalPort getEmulatorFiscalPort()
+	{
+		HasarEmulator emulator = new HasarEmulator(encoding, baseRolloverYear);
+		emulator.setClock(getClock());
+		return new EmulatorFiscalPort(emulator, getClock());
+	}
+}
@@ -0,0 +1,160 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import com.taliter.fiscal.device.*;
+import com.taliter.fiscal.device.hasar.*;
+
+/**
+A bounded cache of string fields already encoded for sending, such as product descriptions.
+
+<p>Entries are keyed by value, style, encoding and maximum length, and hold the bytes that
+FiscalPacket.setString() would store for the value truncated to the maximum length. The returned arrays are shared
+and must not be modified; they can be passed to FiscalPacket.set() as packets do not modify field values in place.
+The cache is safe for concurrent use. It is split in stripes, each evicting its least recently used entries.
+*/
+public class EncodedFieldCache
+{
+	/** A cache key. Lookups use a per-thread probe key, so that only misses allocate keys. */
+	private static final class Key
+	{
+		private String value;
+		private int style;
+		private String encoding;
+		private int maxLength;
+		private int hash;
+
+		Key set(String value, int style, String encoding, int maxLength)
+		{
+			this.value = value;
+			this.style = style;
+			this.encoding = encoding;
+			this.maxLength = maxLength;
+			hash = ((value.hashCode() * 31 + style) * 31 + encoding.hashCode()) * 31 + maxLength;
+			return this;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return hash == k.hash && style == k.style && maxLength == k.maxLength && value.equals(k.value) && encoding.equals(k.encoding);
+		}
+
+		public int hashCode() { return hash; }
+	}
+
+	private final ThreadLocal probes = new ThreadLocal()
+	{
+		protected Object initialValue() { return new Key(); }
+	}
+	;
+	private final Map[] stripes;
+	private final int capacity;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public EncodedFieldCache(int capacity) { this(capacity, 16); }
+	/** Create a cache holding up to capacity entries, split in the specified number of stripes (rounded up to a power of 2). */
+	public EncodedFieldCache(int capacity, int stripeCount)
+	{
+		if (capacity < 1 || stripeCount < 1) throw new IllegalArgumentException();
+		int n = 1;
+		while (n < stripeCount && n < capacity) n <<= 1;
+		final int stripeCapacity = (capacity + n - 1) / n;
+		stripes = new Map[n];
+		for (int i = 0; i < n; i++) stripes[i] = new LinkedHashMap(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry eldest) { return size() > stripeCapacity; }
+		}
+		;
+		this.capacity = stripeCapacity * n;
+	}
+
+	/** Get the maximum number of entries. */
+	public int getCapacity() { return capacity; }
+
+	/** Get the number of entries. */
+	public int getSize()
+	{
+		int s = 0;
+		for (int i = 0; i < stripes.length; i++) synchronized (stripes[i]) { s += stripes[i].size(); }
+		return s;
+	}
+
+	/** Remove all entries. */
+	public void clear() { for (int i = 0; i < stripes.length; i++) synchronized (stripes[i]) { stripes[i].clear(); } }
+
+	/** Get the number of lookups that found an entry. */
+	public long getHits() { return hits.get(); }
+	/** Get the number of lookups that did not find an entry. */
+	public long getMisses() { return misses.get(); }
+	/** Get the fraction of lookups that found an entry, or 0 if there were none. */
+	public double getHitRate()
+	{
+		long h = hits.get(), m = misses.get();
+		return h + m != 0 ? (double) h / (h + m) : 0;
+	}
+	/** Reset the hit and miss counters. */
+	public void resetStatistics()
+	{
+		hits.set(0);
+		misses.set(0);
+	}
+
+	/** Get the encoded bytes of a string field in the specified style. */
+	public byte[] get(String value, int style, String encoding) { return get(value, style, encoding, Integer.MAX_VALUE); }
+
+	/** Get the encoded bytes of a string field in the specified style, truncating the value to maxLength chars. */
+	public byte[] get(String value, int style, String encoding, int maxLength)
+	{
+		if (maxLength < 0 || style < 0 || style > 15) throw new IllegalArgumentException();
+		Key k = ((Key) probes.get()).set(value, style, encoding, maxLength);
+		Map m = stripes[(k.hash ^ (k.hash >>> 16)) & (stripes.length - 1)];
+		byte[] f;
+		synchronized (m) { f = (byte[]) m.get(k); }
+		k.value = null;	// Do not keep the value reachable from the probe.
+		k.encoding = null;
+		if (f != null)
+		{
+			hits.incrementAndGet();
+			return f;
+		}
+		misses.incrementAndGet();
+		f = encode(value.length() > maxLength ? value.substring(0, maxLength) : value, style, encoding);
+		synchronized (m) { m.put(new Key().set(value, style, encoding, maxLength), f); }
+		return f;
+	}
+
+	/** Set a string field of a packet through the cache. Packets other than HasarFiscalPacket are set directly. */
+	public void setString(FiscalPacket packet, int field, String value, int style)
+	{
+		if (packet instanceof HasarFiscalPacket) packet.set(field, get(value, style, ((HasarFiscalPacket) packet).getEncoding()));
+		else packet.setString(field, value, style);
+	}
+
+	/** Set a string field of a packet through the cache, truncating the value to maxLength chars. Packets other than HasarFiscalPacket are set directly. */
+	public void setString(FiscalPacket packet, int field, String value, int style, int maxLength)
+	{
+		if (packet instanceof HasarFiscalPacket) packet.set(field, get(value, style, ((HasarFiscalPacket) packet).getEncoding(), maxLength));
+		else packet.setString(field, value.length() > maxLength ? value.substring(0, maxLength) : value, style);
+	}
+
+	private static byte[] encode(String value, int style, String encoding)
+	{
+		byte[] f;
+		try { f = PacketCharset.forName(encoding).encode(value); }
+		catch (UnsupportedEncodingException e) { throw new RuntimeException("Unsupported encoding (" + encoding + ")"); }
+		if (style != FiscalPacket.STYLE_NORMAL)
+		{
+			int l = f.length;
+			byte[] x = new byte[l + 1];
+			x[0] = (byte) (0xF0 | style);
+			System.arraycopy(f, 0, x, 1, l);
+			f = x;
+		}
+		return f;
+	}
+}
@@ -0,0 +1,362 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+import java.util.*;
+
+import com.taliter.fiscal.device.hasar.*;
+import com.taliter.fiscal.port.*;
+
+/**
+A wrapper FiscalPort that injects faults into the data received from the device.
+
+<p>Faults are drawn from a seeded random number generator, so a given seed and configuration always
+produce the same faults for the same traffic. Each fault class has a probability, and faults can
+also be scheduled to hit specific events. Byte faults (FAULT_DROP_BYTE and FAULT_FLIP_BIT) are rolled
+for every received byte, frame faults (FAULT_DUPLICATE_FRAME and FAULT_DISCONNECT) for every received frame,
+and FAULT_LATE_ACK for every received ACK. Scheduled faults are numbered by received frame, except for
+FAULT_LATE_ACK which is numbered by received ACK. Numbering starts at 1.
+
+<p>A disconnection cuts a frame short and drops all traffic in both directions for the configured
+disconnect time.
+*/
+public class FaultInjectingFiscalPort implements FiscalPort
+{
+	/** Drop a received byte. */
+	public static final int FAULT_DROP_BYTE = 0;
+	/** Flip a bit of a received byte. */
+	public static final int FAULT_FLIP_BIT = 1;
+	/** Receive a frame twice. */
+	public static final int FAULT_DUPLICATE_FRAME = 2;
+	/** Delay a received ACK. */
+	public static final int FAULT_LATE_ACK = 3;
+	/** Disconnect in the middle of a received frame. */
+	public static final int FAULT_DISCONNECT = 4;
+	/** The number of fault classes. */
+	public static final int FAULT_COUNT = 5;
+
+	private static final String[] FAULT_NAMES = new String[] { "drop byte", "flip bit", "duplicate frame", "late ACK", "disconnect" };
+
+	/** Get the name of a fault class. */
+	public static String getFaultName(int fault) { return FAULT_NAMES[fault]; }
+
+	private final FiscalPort port;
+	private final Random random;
+	private final Clock clock;
+	private final double[] probabilities = new double[FAULT_COUNT];
+	private final Set[] schedules = new Set[FAULT_COUNT];
+	private int lateAckDelay = 2000;
+	private int disconnectTime = 1000;
+
+	private final int[] faults = new int[FAULT_COUNT];
+	private final HasarFrameCodec sentFrames = new HasarFrameCodec();
+	private int framesSent;
+	private int framesReceived;
+	private int acksReceived;
+
+	private InputStream is;
+	private OutputStream os;
+	private int timeout = -1;
+
+	// Receive state.
+	private byte[] pending = new byte[256];
+	private long[] pendingTimes = new long[256];
+	private int head;
+	private int tail;
+	private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+	private int frameOffset = -1;	// -1 when not in a frame.
+	private int trailer;	// Checksum bytes left after ETX.
+	private boolean duplicateFrame;
+	private int disconnectOffset;
+	private int flipOffset;
+	private int dropOffset;
+	private long disconnectedUntil;
+
+	public FaultInjectingFiscalPort(FiscalPort port, long seed) { this(port, seed, Clock.SYSTEM); }
+	/** Create a port that uses the specified clock to delay bytes and measure disconnections. */
+	public FaultInjectingFiscalPort(FiscalPort port, long seed, Clock clock)
+	{
+		if (clock == null) throw new NullPointerException();
+		this.port = port;
+		this.clock = clock;
+		random = new Random(seed);
+		for (int i = 0; i < FAULT_COUNT; i++) schedules[i] = new HashSet();
+	}
+
+	/** Get the underlying fiscal port. */
+	public FiscalPort getFiscalPort() { return port; }
+
+	/** Set the probability of a fault class (0 to 1). */
+	public void setProbability(int fault, double probability)
+	{
+		if (probability < 0 || probability > 1) throw new IllegalArgumentException();
+		probabilities[fault] = probability;
+	}
+
+	/** Get the probability of a fault class. */
+	public double getProbability(int fault) { return probabilities[fault]; }
+
+	/** Schedule a fault for the specified received frame, or received ACK in the case of FAULT_LATE_ACK. */
+	public void scheduleFault(int fault, int event) { schedules[fault].add(Integer.valueOf(event)); }
+	/** Remove all scheduled faults. */
+	public void clearSchedule() { for (int i = 0; i < FAULT_COUNT; i++) schedules[i].clear(); }
+
+	/** Set the delay of late ACKs in milliseconds. */
+	public void setLateAckDelay(int lateAckDelay) { this.lateAckDelay = lateAckDelay; }
+	/** Get the delay of late ACKs in milliseconds. */
+	public int getLateAckDelay() { return lateAckDelay; }
+
+	/** Set the time traffic is dropped after a disconnection in milliseconds. */
+	public void setDisconnectTime(int disconnectTime) { this.disconnectTime = disconnectTime; }
+	/** Get the time traffic is dropped after a disconnection in milliseconds. */
+	public int getDisconnectTime() { return disconnectTime; }
+
+	/** Get the number of injected faults of a fault class. */
+	public int getFaultCount(int fault) { return faults[fault]; }
+	/** Get the number of frames sent to the device, including retries. */
+	public int getFramesSent() { return framesSent; }
+	/** Get the number of frames received from the device, including faulty ones. */
+	public int getFramesReceived() { return framesReceived; }
+	/** Get the number of ACKs received from the device, including late ones. */
+	public int getAcksReceived() { return acksReceived; }
+
+	/** Reset the fault and frame counters. */
+	public void resetCounters()
+	{
+		Arrays.fill(faults, 0);
+		framesSent = 0;
+		framesReceived = 0;
+		acksReceived = 0;
+	}
+
+	public void open() throws Exception
+	{
+		port.open();
+		head = tail = 0;
+		frameOffset = -1;
+		disconnectedUntil = 0;
+		sentFrames.reset();
+		timeout = -1;
+	}
+
+	public void close() throws Exception
+	{
+		is = null;
+		os = null;
+		port.close();
+	}
+
+	public boolean isOpen() { return port.isOpen(); }
+
+	public void setTimeout(int ms) throws Exception
+	{
+		port.setTimeout(ms);
+		timeout = ms;
+	}
+
+	public int getTimeout() throws Exception { return port.getTimeout(); }
+
+	public void setBaudRate(int baudRate) throws Exception { port.setBaudRate(baudRate); }
+	public int getBaudRate() throws Exception { return port.getBaudRate(); }
+
+	public InputStream getInputStream() throws IOException
+	{
+		if (!port.isOpen()) throw new IllegalStateException("Port closed");
+		if (is == null)
+		{
+			final InputStream pis = port.getInputStream();
+			if (pis == null) throw new NullPointerException();
+			final FiscalPortInputStream fpis = FiscalPortInputStream.get(pis);
+			is = new FiscalPortInputStream()
+			{
+				public int readOrTimeout() throws IOException { return receive(fpis); }
+				public int readOrTimeout(byte[] b, int off, int len) throws IOException
+				{
+					int x = receive(fpis);
+					if (x < 0) return x;
+					b[off] = (byte) x;
+					int l = 1;
+					while (l < len && head < tail && pendingTimes[head] <= clock.currentTimeMillis()) b[off + l++] = pending[head++];
+					return l;
+				}
+				public int available() throws IOException
+				{
+					int n = 0;
+					long now = clock.currentTimeMillis();
+					for (int i = head; i < tail && pendingTimes[i] <= now; i++) n++;
+					return n + pis.available();
+				}
+			}
+			;
+		}
+		return is;
+	}
+
+	public OutputStream getOutputStream() throws IOException
+	{
+		if (!port.isOpen()) throw new IllegalStateException("Port closed");
+		if (os == null)
+		{
+			OutputStream pos = port.getOutputStream();
+			if (pos == null) throw new NullPointerException();
+			os = new FilterOutputStream(pos)
+			{
+				public void write(int b) throws IOException
+				{
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					for (int i = off, l = off + len; i < l; i++)
+					{
+						int r = sentFrames.decode(b[i]);
+						if (r == HasarFrameCodec.DECODE_FRAME || r == HasarFrameCodec.DECODE_CHECKSUM_ERROR) framesSent++;
+					}
+					if (clock.currentTimeMillis() < disconnectedUntil) return;	// Lost.
+					out.write(b, off, len);
+				}
+			}
+			;
+		}
+		return os;
+	}
+
+	public void flushAndWait() throws IOException { port.flushAndWait(); }
+
+	private int receive(FiscalPortInputStream pis) throws IOException	// Returns TIMEOUT on timeout.
+	{
+		long deadline = timeout >= 0 ? clock.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		for (;;)
+		{
+			if (head < tail)
+			{
+				long t = pendingTimes[head];
+				long now = clock.currentTimeMillis();
+				if (t <= now) return pending[head++] & 0xFF;
+				if (deadline <= now) return FiscalPortInputStream.TIMEOUT;
+				sleep(clock, Math.min(t, deadline) - now);
+				continue;
+			}
+			int x = pis.readOrTimeout();
+			if (x < 0) return x;
+			inject(x);
+			if (clock.currentTimeMillis() >= deadline && head == tail) return FiscalPortInputStream.TIMEOUT;
+		}
+	}
+
+	private void inject(int x)
+	{
+		long now = clock.currentTimeMillis();
+		if (now < disconnectedUntil)
+		{
+			frameOffset = -1;
+			return;
+		}
+		if (frameOffset < 0 && x == HasarFrameCodec.ASCII_STX)
+		{
+			framesReceived++;
+			frameOffset = 0;
+			trailer = -1;
+			frame.reset();
+			duplicateFrame = roll(FAULT_DUPLICATE_FRAME, framesReceived);
+			// Scheduled byte faults hit one of the first bytes that every frame has.
+			disconnectOffset = roll(FAULT_DISCONNECT, framesReceived) ? 1 + random.nextInt(3) : -1;
+			flipOffset = schedules[FAULT_FLIP_BIT].contains(Integer.valueOf(framesReceived)) ? 1 + random.nextInt(3) : -1;
+			dropOffset = schedules[FAULT_DROP_BYTE].contains(Integer.valueOf(framesReceived)) ? 1 + random.nextInt(3) : -1;
+		}
+		if (frameOffset >= 0)
+		{
+			if (frameOffset == disconnectOffset)
+			{
+				faults[FAULT_DISCONNECT]++;
+				disconnectedUntil = now + disconnectTime;
+				frameOffset = -1;
+				return;
+			}
+			frame.write(x);
+			if (trailer > 0) trailer--;
+			else if (x == HasarFrameCodec.ASCII_ETX) trailer = 4;
+			boolean end = trailer == 0;
+			boolean drop = frameOffset == dropOffset;
+			boolean flip = frameOffset == flipOffset;
+			frameOffset = end ? -1 : frameOffset + 1;
+			if (drop || (probabilities[FAULT_DROP_BYTE] != 0 && random.nextDouble() < probabilities[FAULT_DROP_BYTE]))
+			{
+				faults[FAULT_DROP_BYTE]++;
+				x = -1;
+			}
+			else if (flip || (probabilities[FAULT_FLIP_BIT] != 0 && random.nextDouble() < probabilities[FAULT_FLIP_BIT]))
+			{
+				faults[FAULT_FLIP_BIT]++;
+				x ^= 1 << random.nextInt(8);
+			}
+			if (x >= 0) enqueue(x, now);
+			if (end && duplicateFrame)
+			{
+				faults[FAULT_DUPLICATE_FRAME]++;
+				byte[] f = frame.toByteArray();
+				for (int i = 0; i < f.length; i++) enqueue(f[i] & 0xFF, now);
+			}
+			return;
+		}
+		if (x == HasarFrameCodec.ASCII_ACK)
+		{
+			acksReceived++;
+			if (roll(FAULT_LATE_ACK, acksReceived))
+			{
+				faults[FAULT_LATE_ACK]++;
+				enqueue(x, now + lateAckDelay);
+				return;
+			}
+		}
+		if (probabilities[FAULT_DROP_BYTE] != 0 && random.nextDouble() < probabilities[FAULT_DROP_BYTE])
+		{
+			faults[FAULT_DROP_BYTE]++;
+			return;
+		}
+		enqueue(x, now);
+	}
+
+	private boolean roll(int fault, int event)
+	{
+		if (schedules[fault].contains(Integer.valueOf(event))) return true;
+		return probabilities[fault] != 0 && random.nextDouble() < probabilities[fault];
+	}
+
+	private void enqueue(int x, long time)
+	{
+		if (tail == pending.length)
+		{
+			int l = tail - head;
+			if (l == pending.length)
+			{
+				byte[] p = new byte[l * 2];
+				long[] t = new long[l * 2];
+				System.arraycopy(pending, head, p, 0, l);
+				System.arraycopy(pendingTimes, head, t, 0, l);
+				pending = p;
+				pendingTimes = t;
+			}
+			else
+			{
+				System.arraycopy(pending, head, pending, 0, l);
+				System.arraycopy(pendingTimes, head, pendingTimes, 0, l);
+			}
+			head = 0;
+			tail = l;
+		}
+		// Delivery is in order: a late byte also delays the bytes that follow it.
+		if (tail > head && pendingTimes[tail - 1] > time) time = pendingTimes[tail - 1];
+		pending[tail] = (byte) x;
+		pendingTimes[tail++] = time;
+	}
+
+	private static void sleep(Clock clock, long ms) throws InterruptedIOException
+	{
+		try { clock.sleep(ms); }
+		catch (InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.taliter.fiscal.util;
+
+import com.taliter.fiscal.port.*;
+
+/**
+A FaultInjectingFiscalPort factory.
+
+<p>Defaults:
+
+<p><code>portSource = null;<br>
+seed = 0;<br>
+probabilities = 0;	// For all fault classes.<br>
+lateAckDelay = 2000;	// In milliseconds.<br>
+disconnectTime = 1000;	// In milliseconds.<br>
+clock = Clock.SYSTEM;	// Not serialized.</code>
+*/
+public class FaultInjectingFiscalPortSource implements FiscalPortSource, Cloneable
+{
+	private FiscalPortSource portSource;
+	private long seed;
+	private double[] probabilities = new double[FaultInjectingFiscalPort.FAULT_COUNT];
+	private int lateAckDelay = 2000;	// In milliseconds.
+	private int disconnectTime = 1000;	// In milliseconds.
+	private transient Clock clock;
+
+	public FaultInjectingFiscalPortSource() {}
+	public FaultInjectingFiscalPortSource(FiscalPortSource portSource) { this.portSource = portSource; }
+	public FaultInjectingFiscalPortSource(FiscalPortSource portSource, long seed) { this.portSource = portSource; this.seed = seed; }
+
+	/** Returns a deep copy of this port source. If set, the underlying port source is cloned too. */
+	public Object clone()
+	{
+		FaultInjectingFiscalPortSource ps;
+		try { ps = (FaultInjectingFiscalPortSource) super.clone(); }
+		catch (CloneNotSupportedException e) { throw new Error(e.toString()); }
+		ps.probabilities = probabilities.clone();
+		if (ps.portSource != null) ps.portSource = (FiscalPortSource) ps.portSource.clone();
+		return ps;
+	}
+
+	/** Set the underlying FiscalPortSource. */
+	public void setPortSource(FiscalPortSource portSource) { this.portSource = portSource; }
+	/** Get the underlying FiscalPortSource. */
+	public FiscalPortSource getPortSource() { return portSource; }
+
+	/** Set the seed of the random number generator. */
+	public void setSeed(long seed) { this.seed = seed; }
+	/** Get the seed of the random number generator. */
+	public long getSeed() { return seed; }
+
+	/** Set the probability of a fault class (0 to 1). */
+	public void setProbability(int fault, double probability)
+	{
+		if (probability < 0 || probability > 1) throw new IllegalArgumentException();
+		probabilities[fault] = probability;
+	}
+
+	/** Get the probability of a fault class. */
+	public double getProbability(int fault) { return probabilities[fault]; }
+
+	/** Set the delay of late ACKs in milliseconds. */
+	public void setLateAckDelay(int lateAckDelay) { this.lateAckDelay = lateAckDelay; }
+	/** Get the delay of late ACKs in milliseconds. */
+	public int getLateAckDelay() { return lateAckDelay; }
+
+	/** Set the time traffic is dropped after a disconnection in milliseconds. */
+	public void setDisconnectTime(int disconnectTime) { this.disconnectTime = disconnectTime; }
+	/** Get the time traffic is dropped after a disconnection in milliseconds. */
+	public int getDisconnectTime() { return disconnectTime; }
+
+	/** Set the clock used by ports to delay bytes and measure disconnections. */
+	public void setClock(Clock clock) { this.clock = clock; }
+	/** Get the clock used by ports to delay bytes and measure disconnections. */
+	public Clock getClock() { return clock != null ? clock : Clock.SYSTEM; }
+
+	/** Create a FaultInjectingFiscalPort object. */
+	public FiscalPort getFiscalPort() throws Exception { return getFaultInjectingFiscalPort(); }
+
+	/** Create a FaultInjectingFiscalPort object. */
+	public FaultInjectingFiscalPort getFaultInjectingFiscalPort() throws Exception
+	{
+		FaultInjectingFiscalPort port = new FaultInjectingFiscalPort(portSource.getFiscalPort(), seed, getClock());
+		for (int i = 0; i < probabilities.length; i++) port.setProbability(i, probabilities[i]);
+		port.setLateAckDelay(lateAckDelay);
+		port.setDisconnectTime(disconnectTime);
+		return port;
+	}
+}
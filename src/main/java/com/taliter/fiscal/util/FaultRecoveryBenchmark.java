@@ -0,0 +1,166 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+
+import com.taliter.fiscal.device.*;
+import com.taliter.fiscal.device.hasar.*;
+
+/**
+A tool that measures how HasarFiscalDevice recovers from communication faults.
+
+<p>For each fault class a series of requests is executed against a HasarEmulator through a FaultInjectingFiscalPort,
+with one fault scheduled for every request. The time taken and the frames sent are compared with a fault-free run,
+giving the time to recover and the number of tries wasted per fault. Late ACKs are delayed for 1.5 timeouts
+and disconnections last for 2 timeouts. By default runs take place in virtual time (see VirtualClock),
+so times are simulated and runs take no real time waiting.
+
+<p>Defaults:
+
+<p><code>requests = 20;<br>
+timeout = 200;	// In milliseconds.<br>
+maxTries = 3;<br>
+seed = 1;<br>
+virtualTime = true;</code>
+*/
+public class FaultRecoveryBenchmark implements HasarConstants
+{
+	/** The results of a run. */
+	public static class Result
+	{
+		private final int fault;
+		private final int requests;
+		private final int failures;
+		private final long totalTime;
+		private final long maxTime;
+		private final int framesSent;
+		private final int faults;
+
+		Result(int fault, int requests, int failures, long totalTime, long maxTime, int framesSent, int faults)
+		{
+			this.fault = fault;
+			this.requests = requests;
+			this.failures = failures;
+			this.totalTime = totalTime;
+			this.maxTime = maxTime;
+			this.framesSent = framesSent;
+			this.faults = faults;
+		}
+
+		/** Get the fault class, or -1 for a fault-free run. */
+		public int getFault() { return fault; }
+		/** Get the number of requests executed. */
+		public int getRequests() { return requests; }
+		/** Get the number of requests that failed with an exception. */
+		public int getFailures() { return failures; }
+		/** Get the number of faults actually injected. */
+		public int getFaults() { return faults; }
+		/** Get the mean time per request in milliseconds. */
+		public double getMeanTime() { return (double) totalTime / requests; }
+		/** Get the maximum time of a request in milliseconds. */
+		public long getMaxTime() { return maxTime; }
+		/** Get the mean number of frames sent per request. */
+		public double getMeanTries() { return (double) framesSent / requests; }
+
+		public String toString()
+		{
+			return (fault >= 0 ? FaultInjectingFiscalPort.getFaultName(fault) : "no fault") + ": requests: " + requests + ", faults: " + faults
+					+ ", failures: " + failures + ", mean ms: " + Math.round(getMeanTime()) + ", max ms: " + maxTime + ", mean tries: " + round(getMeanTries());
+		}
+	}
+
+	private int requests = 20;
+	private int timeout = 200;	// In milliseconds.
+	private int maxTries = 3;
+	private long seed = 1;
+	private boolean virtualTime = true;
+
+	/** Set the number of requests executed per run. */
+	public void setRequests(int requests) { if (requests < 1) throw new IllegalArgumentException(); this.requests = requests; }
+	/** Get the number of requests executed per run. */
+	public int getRequests() { return requests; }
+
+	/** Set the protocol timeout. */
+	public void setTimeout(int timeout) { this.timeout = timeout; }
+	/** Get the protocol timeout. */
+	public int getTimeout() { return timeout; }
+
+	/** Set the number of times requests are tried before timeouting. */
+	public void setMaxTries(int maxTries) { if (maxTries < 1) throw new IllegalArgumentException(); this.maxTries = maxTries; }
+	/** Get the number of times requests are tried before timeouting. */
+	public int getMaxTries() { return maxTries; }
+
+	/** Set the seed used for fault injection. */
+	public void setSeed(long seed) { this.seed = seed; }
+	/** Get the seed used for fault injection. */
+	public long getSeed() { return seed; }
+
+	/** True to run in virtual time, false to run in real time. */
+	public void setVirtualTime(boolean virtualTime) { this.virtualTime = virtualTime; }
+	/** True to run in virtual time, false to run in real time. */
+	public boolean getVirtualTime() { return virtualTime; }
+
+	/** Run the requests with a fault scheduled for each, or without faults if fault is -1. */
+	public Result run(int fault) throws Exception
+	{
+		Clock clock = virtualTime ? (Clock) new VirtualClock(System.currentTimeMillis()) : Clock.SYSTEM;
+		HasarEmulator emulator = new HasarEmulator();
+		emulator.setClock(clock);
+		FaultInjectingFiscalPort port = new FaultInjectingFiscalPort(new EmulatorFiscalPort(emulator, clock), seed, clock);
+		port.setLateAckDelay(timeout * 3 / 2);
+		port.setDisconnectTime(timeout * 2);
+		HasarFiscalDeviceSource ds = new HasarFiscalDeviceSource();
+		ds.setTimeout(timeout);
+		ds.setMaxTries(maxTries);
+		ds.setClock(clock);
+		HasarFiscalDevice device = ds.getHasarFiscalDevice(port);
+		device.open();
+		try
+		{
+			FiscalPacket request = device.createFiscalPacket();
+			request.setCommandCode(CMD_STATUS_REQUEST);
+			FiscalPacket response = device.createFiscalPacket();
+			port.resetCounters();
+			int failures = 0;
+			long totalTime = 0;
+			long maxTime = 0;
+			for (int i = 0; i < requests; i++)
+			{
+				port.clearSchedule();
+				if (fault == FaultInjectingFiscalPort.FAULT_LATE_ACK) port.scheduleFault(fault, port.getAcksReceived() + 1);
+				else if (fault >= 0) port.scheduleFault(fault, port.getFramesReceived() + 1);
+				long t = clock.currentTimeMillis();
+				try { device.execute(request, response); }
+				catch (IOException e)
+				{
+					failures++;
+					device.synchronize();
+				}
+				t = clock.currentTimeMillis() - t;
+				totalTime += t;
+				if (t > maxTime) maxTime = t;
+			}
+			return new Result(fault, requests, failures, totalTime, maxTime, port.getFramesSent(), fault >= 0 ? port.getFaultCount(fault) : 0);
+		}
+		finally { device.close(); }
+	}
+
+	/** Run without faults and with each fault class, printing the results. */
+	public void run(PrintWriter w) throws Exception
+	{
+		Result base = run(-1);
+		w.println(base);
+		for (int i = 0; i < FaultInjectingFiscalPort.FAULT_COUNT; i++)
+		{
+			Result r = run(i);
+			w.println(r + ", time to recover ms: " + Math.round(r.getMeanTime() - base.getMeanTime()) + ", wasted tries: " + round(r.getMeanTries() - base.getMeanTries()));
+			w.flush();
+		}
+	}
+
+	private static double round(double x) { return Math.round(x * 100) / 100d; }
+
+	public static void main(String[] args) throws Exception
+	{
+		new FaultRecoveryBenchmark().run(new PrintWriter(System.out, true));
+	}
+}
@@ -27,6 +27,7 @@ public final class HasarBaudRateChanger
 	public static void changeBaudRate(HasarFiscalDevice device, int baudRate) throws Exception
 	{
 		FiscalPort port = device.getFiscalPort();
+		Clock clock = device.getClock();
 		int br = port.getBaudRate();
 		if (br == baudRate)
 		{
@@ -37,10 +38,10 @@ public final class HasarBaudRateChanger
 		try
 		{
 			port.flushAndWait();
-			sleep(GUARD_TIME);
+			sleep(clock, GUARD_TIME);
 			port.setBaudRate(baudRate);	// Check host baud rate support.
 			port.setBaudRate(br);
-			sleep(GUARD_TIME);
+			sleep(clock, GUARD_TIME);
 			device.synchronize();
 			FiscalDeviceEventHandler h = device.getEventHandler();
 			device.setEventHandler(null);	// Suppress event generation.
@@ -58,9 +59,9 @@ public final class HasarBaudRateChanger
 						os.write(ASCII_ACK);
 						port.flushAndWait();
 					}
-					sleep(GUARD_TIME);
+					sleep(clock, GUARD_TIME);
 					port.setBaudRate(baudRate);
-					sleep(GUARD_TIME);
+					sleep(clock, GUARD_TIME);
 					for (int i = FREE_ACKS; i > 0; i--)
 					{
 						os.write(ASCII_ACK);
@@ -71,9 +72,9 @@ public final class HasarBaudRateChanger
 					return;
 				}
 				port.flushAndWait();
-				sleep(GUARD_TIME);
+				sleep(clock, GUARD_TIME);
 				port.setBaudRate(baudRate);
-				sleep(GUARD_TIME);
+				sleep(clock, GUARD_TIME);
 				device.synchronize();
 				success = true;
 				return;
@@ -83,9 +84,9 @@ public final class HasarBaudRateChanger
 		finally { if (!success) port.setBaudRate(br); }
 	}
 
-	private static void sleep(long ms)
+	private static void sleep(Clock clock, long ms)
 	{
-		try { Thread.sleep(ms); }
+		try { clock.sleep(ms); }
 		catch (InterruptedException x) { Thread.currentThread().interrupt(); }
 	}
 }
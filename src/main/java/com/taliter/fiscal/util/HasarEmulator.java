@@ -0,0 +1,118 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+import java.util.*;
+
+import com.taliter.fiscal.device.*;
+import com.taliter.fiscal.device.hasar.*;
+
+/**
+A software emulation of the protocol side of a Hasar fiscal device, for testing and benchmarking without hardware.
+
+<p>Bytes sent by the host are fed to receive() and the bytes the device would answer are written to the
+passed stream. Valid requests are acknowledged and answered with a response that carries the same command
+code and serial number, followed by the configured printer and fiscal status. Requests with an invalid checksum
+are rejected with a NAK. Repeated requests are answered with the previous response without executing them again,
+and the previous response is resent if the host rejects it with a NAK.
+
+<p>Subclasses can override respond() to add fields to responses. By default only CMD_GET_DATE_TIME
+responses carry additional fields.
+*/
+public class HasarEmulator implements HasarConstants
+{
+	private final HasarFrameCodec decoder = new HasarFrameCodec();
+	private final HasarFiscalPacket request;
+	private final HasarFiscalPacket response;
+
+	private Clock clock = Clock.SYSTEM;
+	private int printerStatus = PST_PRINT_BUFFER_EMPTY;
+	private int fiscalStatus = FST_DEVICE_CERTIFIED | FST_DEVICE_FISCALIZED;
+
+	private byte[] lastResponse;
+	private int lastSerialNumber = -1;
+	private int lastChecksum;
+	private int requests;
+
+	public HasarEmulator() { this("Cp437", 1997); }
+	public HasarEmulator(String encoding, int baseRolloverYear)
+	{
+		request = new HasarFiscalPacket(encoding, baseRolloverYear);
+		response = new HasarFiscalPacket(encoding, baseRolloverYear);
+	}
+
+	/** Set the clock used for the date and time reported by the emulator. */
+	public void setClock(Clock clock) { if (clock == null) throw new NullPointerException(); this.clock = clock; }
+	/** Get the clock used for the date and time reported by the emulator. */
+	public Clock getClock() { return clock; }
+
+	/** Set the printer status reported in responses. */
+	public void setPrinterStatus(int printerStatus) { this.printerStatus = printerStatus; }
+	/** Get the printer status reported in responses. */
+	public int getPrinterStatus() { return printerStatus; }
+
+	/** Set the fiscal status reported in responses. */
+	public void setFiscalStatus(int fiscalStatus) { this.fiscalStatus = fiscalStatus; }
+	/** Get the fiscal status reported in responses. */
+	public int getFiscalStatus() { return fiscalStatus; }
+
+	/** Get the number of requests executed, not counting repeated requests. */
+	public int getRequests() { return requests; }
+
+	/** Discard any partially received frame and forget the last response. */
+	public void reset()
+	{
+		decoder.reset();
+		lastResponse = null;
+		lastSerialNumber = -1;
+	}
+
+	/** Process bytes sent by the host, writing the answer of the device to the passed stream. */
+	public void receive(byte[] b, int off, int len, OutputStream toHost) throws IOException
+	{
+		for (int i = off, l = off + len; i < l; i++) receive(b[i], toHost);
+	}
+
+	/** Process a byte sent by the host, writing the answer of the device to the passed stream. */
+	public void receive(int x, OutputStream toHost) throws IOException
+	{
+		switch (decoder.decode(x))
+		{
+			case HasarFrameCodec.DECODE_FRAME:
+				int sn = decoder.getSerialNumber();
+				int cs = decoder.getReceivedChecksum();
+				toHost.write(HasarFrameCodec.ASCII_ACK);
+				if (sn != lastSerialNumber || cs != lastChecksum || lastResponse == null)
+				{
+					decoder.getPacket(request);
+					response.clear();
+					response.setCommandCode(request.getCommandCode());
+					response.setPrinterStatus(printerStatus);
+					response.setFiscalStatus(fiscalStatus);
+					respond(request, response);
+					requests++;
+					lastResponse = HasarFrameCodec.encode(response, sn, decoder.isExtendedProtocol());
+					lastSerialNumber = sn;
+					lastChecksum = cs;
+				}
+				toHost.write(lastResponse);
+				break;
+			case HasarFrameCodec.DECODE_CHECKSUM_ERROR:
+				toHost.write(HasarFrameCodec.ASCII_NAK);
+				break;
+			case HasarFrameCodec.DECODE_CONTROL:
+				if (decoder.getControl() == HasarFrameCodec.ASCII_NAK && lastResponse != null) toHost.write(lastResponse);
+				break;
+		}
+		toHost.flush();
+	}
+
+	/** Complete a response. The command code and the status fields are already set. */
+	protected void respond(FiscalPacket request, FiscalPacket response)
+	{
+		if (request.getCommandCode() == CMD_GET_DATE_TIME)
+		{
+			response.setSize(5);
+			response.setDateAndTime(3, 4, new Date(clock.currentTimeMillis()));
+		}
+	}
+}
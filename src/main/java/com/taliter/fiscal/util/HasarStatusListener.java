@@ -0,0 +1,12 @@
+package com.taliter.fiscal.util;
+
+import com.taliter.fiscal.device.*;
+
+/** A listener for status changes detected by a HasarStatusTracker. Statuses are packed as described in HasarStatus. */
+public interface HasarStatusListener
+{
+	/** Invoked when the status of a device changes.
+	@param oldStatusKnown false for the first status received, in which case oldStatus is 0 and all bits are reported as changed.
+	@param changes the bits that changed. */
+	public void onStatusChange(FiscalDevice source, boolean oldStatusKnown, int oldStatus, int newStatus, int changes);
+}
@@ -0,0 +1,93 @@
+package com.taliter.fiscal.util;
+
+import com.taliter.fiscal.device.*;
+import com.taliter.fiscal.device.hasar.*;
+
+/**
+A wrapper FiscalDeviceEventHandler that tracks the printer and fiscal status of a device.
+
+<p>The status words of every response and STATPRN response are decoded and compared with the last status,
+and the listener is notified only when bits change. Trackers keep the status of one device, so a tracker should be
+installed per device. The wrapped event handler is optional (may be null).
+*/
+public class HasarStatusTracker implements FiscalDeviceEventHandler
+{
+	private final FiscalDeviceEventHandler eventHandler;
+	private volatile HasarStatusListener listener;
+	private int status;
+	private boolean statusKnown;
+	private int mask = 0xFFFFFFFF;
+
+	public HasarStatusTracker(HasarStatusListener listener) { this(null, listener); }
+	public HasarStatusTracker(FiscalDeviceEventHandler eventHandler, HasarStatusListener listener)
+	{
+		this.eventHandler = eventHandler;
+		this.listener = listener;
+	}
+
+	/** Get the underlying event handler. */
+	public FiscalDeviceEventHandler getFiscalDeviceEventHandler() { return eventHandler; }
+
+	/** Set the status listener. */
+	public void setListener(HasarStatusListener listener) { this.listener = listener; }
+	/** Get the status listener. */
+	public HasarStatusListener getListener() { return listener; }
+
+	/** Set the bits that are reported when changed, as a packed status. All bits by default. */
+	public synchronized void setMask(int mask) { this.mask = mask; }
+	/** Get the bits that are reported when changed, as a packed status. All bits by default. */
+	public synchronized int getMask() { return mask; }
+
+	/** Get the last packed status, or 0 if no status has been received. */
+	public synchronized int getStatus() { return status; }
+	/** Returns true if a status has been received. */
+	public synchronized boolean isStatusKnown() { return statusKnown; }
+
+	/** Forget the last status, so that all bits of the next status are reported as changed. */
+	public synchronized void reset()
+	{
+		status = 0;
+		statusKnown = false;
+	}
+
+	/** Update the status from a response packet, notifying the listener if masked bits changed.
+	Packets without valid status fields are ignored. */
+	public void update(FiscalDevice source, FiscalPacket response)
+	{
+		if (response.getSize() < 3) return;
+		int s;
+		try { s = HasarStatus.get(response); }
+		catch (NumberFormatException e) { return; }
+		boolean k;
+		int o;
+		int changes;
+		synchronized (this)
+		{
+			k = statusKnown;
+			o = status;
+			if (k && o == s) return;
+			status = s;
+			statusKnown = true;
+			changes = k ? HasarStatus.getChanges(o, s) : 0xFFFFFFFF;
+			if ((changes & mask) == 0) return;
+		}
+		HasarStatusListener l = listener;
+		if (l != null) l.onStatusChange(source, k, o, s, changes);
+	}
+
+	public boolean onTimeout(FiscalDevice source, FiscalPacket request) { return eventHandler != null ? eventHandler.onTimeout(source, request) : false; }
+
+	public void onStatus(FiscalDevice source, FiscalPacket request, int status) { if (eventHandler != null) eventHandler.onStatus(source, request, status); }
+
+	public boolean onExtendedStatus(FiscalDevice source, FiscalPacket request, FiscalPacket status)
+	{
+		update(source, status);
+		return eventHandler != null ? eventHandler.onExtendedStatus(source, request, status) : true;
+	}
+
+	public void onExecute(FiscalDevice source, FiscalPacket request, FiscalPacket response)
+	{
+		update(source, response);
+		if (eventHandler != null) eventHandler.onExecute(source, request, response);
+	}
+}
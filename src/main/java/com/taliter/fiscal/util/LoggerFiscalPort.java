@@ -11,6 +11,7 @@ public class LoggerFiscalPort implements FiscalPort
 	protected final PrintWriter log;
 	private InputStream is;
 	private OutputStream os;
+	private boolean timestamps;
 
 	public LoggerFiscalPort(FiscalPort port, PrintWriter log)
 	{
@@ -27,15 +28,27 @@ public class LoggerFiscalPort implements FiscalPort
 	/** Get the underlying fiscal port. */
 	public FiscalPort getFiscalPort() { return port; }
 
+	/** True to prefix every log line with the current time in milliseconds. Required by CommLogAnalyzer to measure latencies. */
+	public void setTimestamps(boolean timestamps) { this.timestamps = timestamps; }
+	/** True to prefix every log line with the current time in milliseconds. Required by CommLogAnalyzer to measure latencies. */
+	public boolean getTimestamps() { return timestamps; }
+
+	/** Log a line, prefixed with a timestamp if so configured. */
+	protected void logLine(String s)
+	{
+		if (timestamps) log.println(System.currentTimeMillis() + " " + s);
+		else log.println(s);
+	}
+
 	public void open() throws Exception
 	{
-		log.println("port: open");
+		logLine("port: open");
 		port.open();
 	}
 
 	public void close() throws Exception
 	{
-		log.println("port: close");
+		logLine("port: close");
 		is = null;
 		os = null;
 		port.close();
@@ -45,8 +58,8 @@ public class LoggerFiscalPort implements FiscalPort
 
 	public void setTimeout(int ms) throws Exception
 	{
-		if (ms >= 0) log.println("port: setTimeout: " + ms + " ms");
-		else log.println("port: setTimeout: disabled");
+		if (ms >= 0) logLine("port: setTimeout: " + ms + " ms");
+		else logLine("port: setTimeout: disabled");
 		port.setTimeout(ms);
 	}
 
@@ -57,7 +70,7 @@ public class LoggerFiscalPort implements FiscalPort
 
 	public void setBaudRate(int baudRate) throws Exception
 	{
-		log.println("port: setBaudRate: " + baudRate + " baud");
+		logLine("port: setBaudRate: " + baudRate + " baud");
 		port.setBaudRate(baudRate);
 	}
 
@@ -73,26 +86,17 @@ public class LoggerFiscalPort implements FiscalPort
 		{
 			InputStream pis = port.getInputStream();
 			if (pis == null) throw new NullPointerException();
-			is = new FilterInputStream(pis)
+			final FiscalPortInputStream fpis = FiscalPortInputStream.get(pis);
+			is = new FiscalPortInputStream()
 			{
-				public int read() throws IOException
-				{
-					byte[] b = new byte[1];
-					int l = read(b, 0, 1);
-					return l == 1 ? b[0] : -1;
-				}
-				public int read(byte[] b, int off, int len) throws IOException
+				public int readOrTimeout(byte[] b, int off, int len) throws IOException
 				{
-					int l;
-					try { l = in.read(b, off, len); }
-					catch (FiscalPortTimeoutException e)
-					{
-						log.println("port: read: timeout");
-						throw e;
-					}
-					if (l > 0) log.println("port: read: " + ByteFormatter.toHexString(b, off, l));
+					int l = fpis.readOrTimeout(b, off, len);
+					if (l == TIMEOUT) logLine("port: read: timeout");
+					else if (l > 0) logLine("port: read: " + ByteFormatter.toHexString(b, off, l));
 					return l;
 				}
+				public int available() throws IOException { return fpis.available(); }
 			}
 			;
 		}
@@ -114,12 +118,12 @@ public class LoggerFiscalPort implements FiscalPort
 				}
 				public void write(byte[] b, int off, int len) throws IOException
 				{
-					if (len > 0) log.println("port: write: " + ByteFormatter.toHexString(b, off, len));
+					if (len > 0) logLine("port: write: " + ByteFormatter.toHexString(b, off, len));
 					out.write(b, off, len);
 				}
 				public void flush() throws IOException
 				{
-					log.println("port: flush");
+					logLine("port: flush");
 					out.flush();
 				}
 				public void close() throws IOException
@@ -134,7 +138,7 @@ public class LoggerFiscalPort implements FiscalPort
 
 	public void flushAndWait() throws IOException
 	{
-		log.println("port: flushAndWait");
+		logLine("port: flushAndWait");
 		port.flushAndWait();
 	}
 }
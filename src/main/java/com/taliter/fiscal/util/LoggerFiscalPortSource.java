@@ -10,6 +10,7 @@ public class LoggerFiscalPortSource implements FiscalPortSource, Cloneable
 	private FiscalPortSource portSource;
 	private transient PrintWriter printWriter;
 	private transient PrintStream printStream;
+	private boolean timestamps;
 
 	public LoggerFiscalPortSource() {}
 
@@ -51,14 +52,22 @@ public class LoggerFiscalPortSource implements FiscalPortSource, Cloneable
 	/** Get the logging PrintStream. */
 	public PrintStream getPrintStream() { return printStream; }
 
+	/** True to prefix every log line with the current time in milliseconds. */
+	public void setTimestamps(boolean timestamps) { this.timestamps = timestamps; }
+	/** True to prefix every log line with the current time in milliseconds. */
+	public boolean getTimestamps() { return timestamps; }
+
 	/** Create a LoggerFiscalPort object. */
 	public FiscalPort getFiscalPort() throws Exception { return getLoggerFiscalPort(); }
 
 	/** Create a LoggerFiscalPort object. */
 	public LoggerFiscalPort getLoggerFiscalPort() throws Exception
 	{
-		if (printWriter != null) return new LoggerFiscalPort(portSource.getFiscalPort(), printWriter);
-		else if (printStream != null) return new LoggerFiscalPort(portSource.getFiscalPort(), printStream);
+		LoggerFiscalPort port;
+		if (printWriter != null) port = new LoggerFiscalPort(portSource.getFiscalPort(), printWriter);
+		else if (printStream != null) port = new LoggerFiscalPort(portSource.getFiscalPort(), printStream);
 		else throw new NullPointerException("Undefined log printer");
+		port.setTimestamps(timestamps);
+		return port;
 	}
 }
@@ -0,0 +1,395 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import com.taliter.fiscal.device.*;
+import com.taliter.fiscal.device.hasar.*;
+import com.taliter.fiscal.port.*;
+import com.taliter.fiscal.port.rxtx.*;
+import com.taliter.fiscal.port.serial.*;
+import com.taliter.fiscal.port.tty.*;
+
+/**
+A tool that compares FiscalPort implementations by running the same receipt workload through each of them.
+
+<p>The ports under test are connected to a HasarEmulator that runs in a thread of this process on the other end of
+a linked pair of terminals, such as a pseudo-terminal pair created with
+<code>socat -d -d pty,raw,echo=0 pty,raw,echo=0</code>, so no hardware is needed (except for SerialFiscalPort, as
+<code>javax.comm</code> cannot open pseudo-terminals). The emulator end is accessed through
+a TTYFiscalPort. Each receipt opens a fiscal document, prints the line items, requests the subtotal, pays and closes the document.
+
+<p>For each port the mean open() and close() times are measured first. Then the receipts are executed, after
+a warm-up, measuring the latency of each request (one request frame and its response frame), the read and write
+system calls per receipt (from <code>/proc/self/io</code>) and the CPU time per receipt (from the process CPU time,
+where supported). System calls and CPU time are counted for the whole process, so they include the emulator,
+which is the same for all ports; compare them between ports rather than reading them as absolute values.
+
+<p>Defaults:
+
+<p><code>receipts = 50;<br>
+warmUpReceipts = 5;<br>
+lineItems = 10;<br>
+openCloses = 10;<br>
+timeout = 2000;	// In milliseconds.<br>
+baudRate = 9600;</code>
+*/
+public class PortBenchmark implements HasarConstants
+{
+	private static final String RXTX_PORTS_PROPERTY = "gnu.io.rxtx.SerialPorts";
+
+	/** The results of a run. */
+	public static class Result
+	{
+		private final String name;
+		private final int receipts;
+		private final double openTime;
+		private final double closeTime;
+		private final long[] latencies;	// Sorted, in nanoseconds.
+		private final long syscalls;
+		private final long cpuTime;
+
+		Result(String name, int receipts, double openTime, double closeTime, long[] latencies, long syscalls, long cpuTime)
+		{
+			this.name = name;
+			this.receipts = receipts;
+			this.openTime = openTime;
+			this.closeTime = closeTime;
+			this.latencies = latencies;
+			this.syscalls = syscalls;
+			this.cpuTime = cpuTime;
+		}
+
+		/** Get the name of the port. */
+		public String getName() { return name; }
+		/** Get the number of receipts executed. */
+		public int getReceipts() { return receipts; }
+		/** Get the number of requests executed. */
+		public int getRequests() { return latencies.length; }
+		/** Get the mean time of open() in milliseconds. */
+		public double getOpenTime() { return openTime; }
+		/** Get the mean time of close() in milliseconds. */
+		public double getCloseTime() { return closeTime; }
+		/** Get the mean request latency in microseconds. */
+		public double getMeanLatency()
+		{
+			long t = 0;
+			for (int i = 0; i < latencies.length; i++) t += latencies[i];
+			return t / 1000d / latencies.length;
+		}
+		/** Get a request latency percentile (0 to 100) in microseconds. */
+		public double getLatency(double percentile)
+		{
+			int i = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(i, latencies.length - 1))] / 1000d;
+		}
+		/** Get the mean number of read and write system calls per receipt, or -1 if unknown. */
+		public double getSyscalls() { return syscalls >= 0 ? (double) syscalls / receipts : -1; }
+		/** Get the mean CPU time per receipt in microseconds, or -1 if unknown. */
+		public double getCPUTime() { return cpuTime >= 0 ? cpuTime / 1000d / receipts : -1; }
+
+		public String toString()
+		{
+			return name + ": open ms: " + round(openTime) + ", close ms: " + round(closeTime) + ", requests: " + latencies.length
+					+ ", latency us mean: " + Math.round(getMeanLatency()) + ", p50: " + Math.round(getLatency(50)) + ", p99: " + Math.round(getLatency(99))
+					+ ", max: " + Math.round(getLatency(100)) + ", syscalls/receipt: " + round(getSyscalls()) + ", cpu us/receipt: " + Math.round(getCPUTime());
+		}
+	}
+
+	private final String devicePath;
+	private int receipts = 50;
+	private int warmUpReceipts = 5;
+	private int lineItems = 10;
+	private int openCloses = 10;
+	private int timeout = 2000;	// In milliseconds.
+	private int baudRate = 9600;
+
+	/** Create a benchmark whose emulator runs on the specified terminal device. */
+	public PortBenchmark(String devicePath)
+	{
+		if (devicePath == null) throw new NullPointerException();
+		this.devicePath = devicePath;
+	}
+
+	/** Get the terminal device on which the emulator runs. */
+	public String getDevicePath() { return devicePath; }
+
+	/** Set the number of receipts measured per port. */
+	public void setReceipts(int receipts) { if (receipts < 1) throw new IllegalArgumentException(); this.receipts = receipts; }
+	/** Get the number of receipts measured per port. */
+	public int getReceipts() { return receipts; }
+
+	/** Set the number of receipts executed before measuring. */
+	public void setWarmUpReceipts(int warmUpReceipts) { if (warmUpReceipts < 0) throw new IllegalArgumentException(); this.warmUpReceipts = warmUpReceipts; }
+	/** Get the number of receipts executed before measuring. */
+	public int getWarmUpReceipts() { return warmUpReceipts; }
+
+	/** Set the number of line items per receipt. */
+	public void setLineItems(int lineItems) { if (lineItems < 0) throw new IllegalArgumentException(); this.lineItems = lineItems; }
+	/** Get the number of line items per receipt. */
+	public int getLineItems() { return lineItems; }
+
+	/** Set the number of times ports are opened and closed to measure open() and close(). */
+	public void setOpenCloses(int openCloses) { if (openCloses < 1) throw new IllegalArgumentException(); this.openCloses = openCloses; }
+	/** Get the number of times ports are opened and closed to measure open() and close(). */
+	public int getOpenCloses() { return openCloses; }
+
+	/** Set the protocol timeout. */
+	public void setTimeout(int timeout) { this.timeout = timeout; }
+	/** Get the protocol timeout. */
+	public int getTimeout() { return timeout; }
+
+	/** Set the baud rate of the emulator end. Ports under test should use the same baud rate. */
+	public void setBaudRate(int baudRate) { this.baudRate = baudRate; }
+	/** Get the baud rate of the emulator end. */
+	public int getBaudRate() { return baudRate; }
+
+	/** Run the workload through the ports created by a port source. */
+	public Result run(String name, FiscalPortSource portSource) throws Exception
+	{
+		TTYFiscalPort devicePort = new TTYFiscalPort(devicePath, baudRate, 8, TTYFiscalPort.STOPBITS_1, TTYFiscalPort.PARITY_NONE, TTYFiscalPort.FLOWCONTROL_NONE);
+		devicePort.open();
+		EmulatorThread emulator = new EmulatorThread(devicePort);
+		emulator.start();
+		try
+		{
+			// Open and close.
+			long openTime = 0;
+			long closeTime = 0;
+			for (int i = 0; i < openCloses; i++)
+			{
+				FiscalPort port = portSource.getFiscalPort();
+				long t = System.nanoTime();
+				port.open();
+				openTime += System.nanoTime() - t;
+				t = System.nanoTime();
+				port.close();
+				closeTime += System.nanoTime() - t;
+			}
+
+			// Receipts.
+			HasarFiscalDeviceSource ds = new HasarFiscalDeviceSource(portSource);
+			ds.setTimeout(timeout);
+			HasarFiscalDevice device = ds.getHasarFiscalDevice();
+			device.open();
+			try
+			{
+				FiscalPacket[] requests = createReceipt(device);
+				FiscalPacket response = device.createFiscalPacket();
+				for (int i = 0; i < warmUpReceipts; i++) executeReceipt(device, requests, response, null, 0);
+				long[] latencies = new long[receipts * requests.length];
+				long syscalls = getSyscalls();
+				long cpuTime = getCPUTime();
+				for (int i = 0; i < receipts; i++) executeReceipt(device, requests, response, latencies, i * requests.length);
+				cpuTime = cpuTime >= 0 ? getCPUTime() - cpuTime : -1;
+				syscalls = syscalls >= 0 ? getSyscalls() - syscalls : -1;
+				Arrays.sort(latencies);
+				return new Result(name, receipts, openTime / 1000000d / openCloses, closeTime / 1000000d / openCloses, latencies, syscalls, cpuTime);
+			}
+			finally { device.close(); }
+		}
+		finally
+		{
+			emulator.terminate();
+			devicePort.close();
+		}
+	}
+
+	private FiscalPacket[] createReceipt(FiscalDevice device)
+	{
+		FiscalPacket[] r = new FiscalPacket[lineItems + 4];
+		int n = 0;
+		FiscalPacket p = r[n++] = device.createFiscalPacket();
+		p.setCommandCode(CMD_OPEN_FD);
+		p.setString(1, "T");
+		p.setString(2, "T");
+		for (int i = 0; i < lineItems; i++)
+		{
+			p = r[n++] = device.createFiscalPacket();
+			p.setCommandCode(CMD_PRINT_LINE_ITEM);
+			p.setString(1, "Sample item description");
+			p.setFixed(2, 15, 1);
+			p.setFixed(3, 12345, 2);
+			p.setFixed(4, 210, 1);
+			p.setString(5, "M");
+			p.setFixed(6, 0, 1);
+			p.setInt(7, 0);
+			p.setString(8, "T");
+		}
+		p = r[n++] = device.createFiscalPacket();
+		p.setCommandCode(CMD_SUBTOTAL);
+		p.setString(1, "P");
+		p.setString(2, "");
+		p.setString(3, "0");
+		p = r[n++] = device.createFiscalPacket();
+		p.setCommandCode(CMD_TOTAL_TENDER);
+		p.setString(1, "Efectivo");
+		p.setFixed(2, 2000000, 2);
+		p.setString(3, "T");
+		p.setString(4, "0");
+		p = r[n++] = device.createFiscalPacket();
+		p.setCommandCode(CMD_CLOSE_FD);
+		return r;
+	}
+
+	private static void executeReceipt(FiscalDevice device, FiscalPacket[] requests, FiscalPacket response, long[] latencies, int off) throws IOException
+	{
+		for (int i = 0; i < requests.length; i++)
+		{
+			long t = System.nanoTime();
+			device.execute(requests[i], response);
+			if (latencies != null) latencies[off + i] = System.nanoTime() - t;
+		}
+	}
+
+	/** Get the number of read and write system calls of this process, or -1 if unknown. */
+	private static long getSyscalls()
+	{
+		try
+		{
+			BufferedReader r = new BufferedReader(new FileReader("/proc/self/io"));
+			try
+			{
+				long n = 0;
+				int found = 0;
+				for (String l; (l = r.readLine()) != null;)
+				{
+					if (l.startsWith("syscr:") || l.startsWith("syscw:"))
+					{
+						n += Long.parseLong(l.substring(6).trim());
+						found++;
+					}
+				}
+				return found == 2 ? n : -1;
+			}
+			finally { r.close(); }
+		}
+		catch (IOException e) { return -1; }
+		catch (NumberFormatException e) { return -1; }
+	}
+
+	/** Get the CPU time of this process in nanoseconds, or -1 if unknown. */
+	private static long getCPUTime()
+	{
+		// getProcessCpuTime() is an extension of the OperatingSystemMXBean of some JVMs.
+		OperatingSystemMXBean b = ManagementFactory.getOperatingSystemMXBean();
+		try
+		{
+			Method m = Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getProcessCpuTime", new Class[0]);
+			if (!m.getDeclaringClass().isInstance(b)) return -1;
+			long t = ((Long) m.invoke(b, new Object[0])).longValue();
+			return t >= 0 ? t : -1;
+		}
+		catch (Exception e) { return -1; }
+	}
+
+	/** A thread that answers the requests received on a port with a HasarEmulator. */
+	private static class EmulatorThread extends Thread
+	{
+		private final FiscalPort port;
+		private volatile boolean running = true;
+
+		public EmulatorThread(FiscalPort port)
+		{
+			super("PortBenchmark emulator");
+			setDaemon(true);
+			this.port = port;
+		}
+
+		public void run()
+		{
+			try
+			{
+				port.setTimeout(50);	// Bounds the time terminate() takes.
+				FiscalPortInputStream in = FiscalPortInputStream.get(port.getInputStream());
+				OutputStream out = port.getOutputStream();
+				HasarEmulator emulator = new HasarEmulator();
+				byte[] b = new byte[512];
+				while (running)
+				{
+					int l = in.readOrTimeout(b, 0, b.length);
+					if (l == FiscalPortInputStream.TIMEOUT) continue;
+					if (l < 0) break;
+					emulator.receive(b, 0, l, out);
+					out.flush();
+				}
+			}
+			catch (Exception e) { if (running) e.printStackTrace(); }
+		}
+
+		public void terminate() throws InterruptedException
+		{
+			running = false;
+			join();
+		}
+	}
+
+	/** Creates the port source of an implementation, so that its classes are only loaded when it is run. */
+	private static abstract class PortSourceFactory
+	{
+		abstract FiscalPortSource create(String path);
+	}
+
+	private static double round(double x) { return Math.round(x * 100) / 100d; }
+
+	/** Run the workload through each available port implementation on a terminal pair and print the results.
+	The arguments are the host and device terminal paths. Without arguments a pseudo-terminal pair is created with socat.
+	The host path is added to the <code>gnu.io.rxtx.SerialPorts</code> system property so that RXTX finds it.
+	SerialFiscalPort is reported as unavailable on pseudo-terminals, as <code>javax.comm</code> only opens the ports
+	of its configuration and requires serial line ioctls that pseudo-terminals do not support; run it on a real
+	null-modem pair instead. */
+	public static void main(String[] args) throws Exception
+	{
+		Process socat = null;
+		String hostPath;
+		String devicePath;
+		if (args.length >= 2)
+		{
+			hostPath = args[0];
+			devicePath = args[1];
+		}
+		else
+		{
+			socat = new ProcessBuilder(new String[] { "socat", "-d", "-d", "pty,raw,echo=0", "pty,raw,echo=0" }).start();
+			BufferedReader r = new BufferedReader(new InputStreamReader(socat.getErrorStream()));
+			String[] paths = new String[2];
+			for (int n = 0; n < 2;)
+			{
+				String l = r.readLine();
+				if (l == null) throw new IOException("socat failed");
+				int i = l.indexOf("PTY is ");
+				if (i >= 0) paths[n++] = l.substring(i + 7).trim();
+			}
+			hostPath = paths[0];
+			devicePath = paths[1];
+		}
+		// RXTX only enumerates names that look like serial devices, which excludes pseudo-terminals, unless they are
+		// listed in this property before its driver is loaded.
+		String p = System.getProperty(RXTX_PORTS_PROPERTY);
+		System.setProperty(RXTX_PORTS_PROPERTY, p != null && p.length() != 0 ? p + File.pathSeparator + hostPath : hostPath);
+		try
+		{
+			PortBenchmark b = new PortBenchmark(devicePath);
+			PrintWriter w = new PrintWriter(System.out, true);
+			w.println("host: " + hostPath + ", device: " + devicePath);
+			Map factories = new LinkedHashMap();	// Name to PortSourceFactory.
+			factories.put("TTYFiscalPort", new PortSourceFactory() { FiscalPortSource create(String path) { return new TTYFiscalPortSource(path); } });
+			factories.put("ReaderThreadFiscalPort(TTYFiscalPort)", new PortSourceFactory() { FiscalPortSource create(String path) { return new ReaderThreadFiscalPortSource(new TTYFiscalPortSource(path)); } });
+			factories.put("SerialFiscalPort", new PortSourceFactory() { FiscalPortSource create(String path) { return new SerialFiscalPortSource(path); } });
+			factories.put("RXTXFiscalPort", new PortSourceFactory() { FiscalPortSource create(String path) { return new RXTXFiscalPortSource(path); } });
+			for (Iterator i = factories.entrySet().iterator(); i.hasNext();)
+			{
+				Map.Entry e = (Map.Entry) i.next();
+				String name = (String) e.getKey();
+				try { w.println(b.run(name, ((PortSourceFactory) e.getValue()).create(hostPath))); }
+				catch (Throwable t) { w.println(name + ": unavailable: " + t); }	// The javax.comm and RXTX libraries may be missing.
+			}
+		}
+		finally
+		{
+			if (socat != null) socat.destroy();
+		}
+	}
+}
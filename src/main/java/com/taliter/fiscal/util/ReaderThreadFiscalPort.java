@@ -0,0 +1,240 @@
+package com.taliter.fiscal.util;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+import com.taliter.fiscal.port.*;
+
+/**
+A wrapper FiscalPort that receives data in a dedicated reader thread.
+
+<p>While the port is open, the reader thread drains the underlying port in bulk into a single-producer,
+single-consumer ring buffer, and the thread using the port reads from memory. Receive timeouts are measured
+with System.nanoTime() against a deadline, and available() does not call the underlying port.
+The arrival time of every byte is recorded and can be queried with getArrivalTime().
+
+<p>The underlying port timeout is set to the poll interval, which bounds the time the reader thread takes to notice
+that the port is being closed. Errors of the underlying port are thrown to the reading thread once the buffer is empty.
+*/
+public class ReaderThreadFiscalPort implements FiscalPort
+{
+	private final FiscalPort port;
+	private final int pollInterval;
+	private final byte[] ring;
+	private final long[] arrivalTimes;	// System.nanoTime() per byte.
+	private final int mask;
+
+	// The reader thread is the only writer of tail, and the reading thread the only writer of head.
+	private volatile long head;
+	private volatile long tail;
+	private volatile Thread waiter;	// The reading thread while waiting for data.
+	private volatile boolean running;
+	private volatile IOException failure;
+	private Thread reader;
+
+	private final FiscalPortInputStream in = new FiscalPortInputStream()
+	{
+		public int readOrTimeout(byte[] b, int off, int len) throws IOException { return receive(b, off, len); }
+		public int available() { return (int) (tail - head); }
+	}
+	;
+
+	private int timeout = -1;
+	private long arrivalTime;
+	private volatile long bytesReceived;	// Written by the reader thread only.
+	private volatile long reads;	// Written by the reader thread only.
+
+	/** Create a port with a 4096 byte buffer and a 50 ms poll interval. */
+	public ReaderThreadFiscalPort(FiscalPort port) { this(port, 4096, 50); }
+	/** Create a port with the specified buffer capacity (rounded up to a power of 2) and poll interval in milliseconds. */
+	public ReaderThreadFiscalPort(FiscalPort port, int capacity, int pollInterval)
+	{
+		if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException();
+		if (pollInterval < 1) throw new IllegalArgumentException();
+		int c = 1;
+		while (c < capacity) c <<= 1;
+		this.port = port;
+		this.pollInterval = pollInterval;
+		ring = new byte[c];
+		arrivalTimes = new long[c];
+		mask = c - 1;
+	}
+
+	/** Get the underlying fiscal port. */
+	public FiscalPort getFiscalPort() { return port; }
+
+	/** Get the buffer capacity. */
+	public int getCapacity() { return ring.length; }
+	/** Get the poll interval in milliseconds. */
+	public int getPollInterval() { return pollInterval; }
+
+	/** Get the System.nanoTime() at which the last byte read arrived. Returns 0 if no byte has been read. */
+	public long getArrivalTime() { return arrivalTime; }
+	/** Get the number of bytes received from the underlying port. */
+	public long getBytesReceived() { return bytesReceived; }
+	/** Get the number of reads from the underlying port that returned data. */
+	public long getReads() { return reads; }
+
+	public synchronized void open() throws Exception
+	{
+		if (reader != null) throw new IllegalStateException("Port open");
+		port.open();
+		boolean success = false;
+		try
+		{
+			port.setTimeout(pollInterval);
+			final FiscalPortInputStream pin = FiscalPortInputStream.get(port.getInputStream());
+			head = tail = 0;
+			failure = null;
+			timeout = -1;
+			arrivalTime = 0;
+			running = true;
+			reader = new Thread("ReaderThreadFiscalPort")
+			{
+				public void run() { drain(pin); }
+			}
+			;
+			reader.setDaemon(true);
+			reader.start();
+			success = true;
+		}
+		finally
+		{
+			if (!success)
+			{
+				running = false;
+				reader = null;
+				port.close();
+			}
+		}
+	}
+
+	public synchronized void close() throws Exception
+	{
+		if (reader == null) return;
+		running = false;
+		LockSupport.unpark(reader);
+		Thread w = waiter;
+		if (w != null) LockSupport.unpark(w);
+		boolean interrupted = false;
+		for (;;)
+		{
+			try
+			{
+				reader.join();
+				break;
+			}
+			catch (InterruptedException e) { interrupted = true; }
+		}
+		reader = null;
+		if (interrupted) Thread.currentThread().interrupt();
+		port.close();
+	}
+
+	public synchronized boolean isOpen() { return reader != null; }
+
+	/** Set the receive timeout, which is measured by this port. The underlying port timeout is left at the poll interval. */
+	public void setTimeout(int ms) { timeout = ms; }
+	public int getTimeout() { return timeout; }
+
+	public void setBaudRate(int baudRate) throws Exception { port.setBaudRate(baudRate); }
+	public int getBaudRate() throws Exception { return port.getBaudRate(); }
+
+	public InputStream getInputStream() throws IOException
+	{
+		if (reader == null) throw new IllegalStateException("Port closed");
+		return in;
+	}
+
+	public OutputStream getOutputStream() throws IOException { return port.getOutputStream(); }
+
+	public void flushAndWait() throws IOException { port.flushAndWait(); }
+
+	// Reader thread.
+
+	private void drain(FiscalPortInputStream pin)
+	{
+		byte[] b = ring;
+		long[] at = arrivalTimes;
+		try
+		{
+			while (running)
+			{
+				long t = tail;
+				long free = b.length - (t - head);
+				if (free == 0)
+				{
+					LockSupport.parkNanos(100000L);	// Full, wait for the reading thread.
+					continue;
+				}
+				int p = (int) t & mask;
+				int l = pin.readOrTimeout(b, p, (int) Math.min(free, b.length - p));	// Up to the end of the array.
+				if (l == FiscalPortInputStream.TIMEOUT) continue;
+				if (l < 0) throw new EOFException();
+				long now = System.nanoTime();
+				for (int i = p, e = p + l; i < e; i++) at[i] = now;
+				bytesReceived += l;
+				reads++;
+				tail = t + l;	// Publish.
+				Thread w = waiter;
+				if (w != null) LockSupport.unpark(w);
+			}
+		}
+		catch (IOException e) { fail(e); }
+		catch (RuntimeException e)
+		{
+			IOException x = new IOException("Reader thread failed");
+			x.initCause(e);
+			fail(x);
+		}
+	}
+
+	private void fail(IOException e)
+	{
+		failure = e;
+		Thread w = waiter;
+		if (w != null) LockSupport.unpark(w);
+	}
+
+	// Reading thread.
+
+	private int receive(byte[] b, int off, int len) throws IOException
+	{
+		long h = head;
+		long t = tail;
+		if (h == t)
+		{
+			long deadline = timeout >= 0 ? System.nanoTime() + timeout * 1000000L : 0;
+			waiter = Thread.currentThread();
+			try
+			{
+				while ((t = tail) == h)
+				{
+					if (failure != null) throw failure;
+					if (!running) throw new IOException("Port closed");
+					if (timeout >= 0)
+					{
+						long w = deadline - System.nanoTime();
+						if (w <= 0) return FiscalPortInputStream.TIMEOUT;
+						LockSupport.parkNanos(w);
+					}
+					else LockSupport.park();
+					if (Thread.interrupted())
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+			}
+			finally { waiter = null; }
+		}
+		int l = (int) Math.min(len, t - h);
+		int p = (int) h & mask;
+		int l1 = Math.min(l, ring.length - p);
+		System.arraycopy(ring, p, b, off, l1);
+		if (l1 < l) System.arraycopy(ring, 0, b, off + l1, l - l1);
+		arrivalTime = arrivalTimes[(int) (h + l - 1) & mask];
+		head = h + l;	// Release.
+		return l;
+	}
+}
@@ -0,0 +1,53 @@
+package com.taliter.fiscal.util;
+
+import com.taliter.fiscal.port.*;
+
+/**
+A ReaderThreadFiscalPort factory.
+
+<p>Defaults:
+
+<p><code>portSource = null;<br>
+capacity = 4096;	// In bytes.<br>
+pollInterval = 50;	// In milliseconds.</code>
+*/
+public class ReaderThreadFiscalPortSource implements FiscalPortSource, Cloneable
+{
+	private FiscalPortSource portSource;
+	private int capacity = 4096;	// In bytes.
+	private int pollInterval = 50;	// In milliseconds.
+
+	public ReaderThreadFiscalPortSource() {}
+	public ReaderThreadFiscalPortSource(FiscalPortSource portSource) { this.portSource = portSource; }
+
+	/** Returns a deep copy of this port source. If set, the underlying port source is cloned too. */
+	public Object clone()
+	{
+		ReaderThreadFiscalPortSource ps;
+		try { ps = (ReaderThreadFiscalPortSource) super.clone(); }
+		catch (CloneNotSupportedException e) { throw new Error(e.toString()); }
+		if (ps.portSource != null) ps.portSource = (FiscalPortSource) ps.portSource.clone();
+		return ps;
+	}
+
+	/** Set the underlying FiscalPortSource. */
+	public void setPortSource(FiscalPortSource portSource) { this.portSource = portSource; }
+	/** Get the underlying FiscalPortSource. */
+	public FiscalPortSource getPortSource() { return portSource; }
+
+	/** Set the buffer capacity in bytes. Rounded up to a power of 2. */
+	public void setCapacity(int capacity) { this.capacity = capacity; }
+	/** Get the buffer capacity in bytes. Rounded up to a power of 2. */
+	public int getCapacity() { return capacity; }
+
+	/** Set the interval at which the reader thread polls the underlying port, in milliseconds. */
+	public void setPollInterval(int pollInterval) { this.pollInterval = pollInterval; }
+	/** Get the interval at which the reader thread polls the underlying port, in milliseconds. */
+	public int getPollInterval() { return pollInterval; }
+
+	/** Create a ReaderThreadFiscalPort object. */
+	public FiscalPort getFiscalPort() throws Exception { return getReaderThreadFiscalPort(); }
+
+	/** Create a ReaderThreadFiscalPort object. */
+	public ReaderThreadFiscalPort getReaderThreadFiscalPort() throws Exception { return new ReaderThreadFiscalPort(portSource.getFiscalPort(), capacity, pollInterval); }
+}
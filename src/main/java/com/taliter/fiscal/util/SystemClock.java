@@ -0,0 +1,11 @@
+package com.taliter.fiscal.util;
+
+/** A Clock that uses the system time. Normally accessed through Clock.SYSTEM. */
+public class SystemClock implements Clock
+{
+	public long currentTimeMillis() { return System.currentTimeMillis(); }
+
+	public void sleep(long ms) throws InterruptedException { Thread.sleep(ms); }
+
+	public void wait(Object monitor, long ms) throws InterruptedException { monitor.wait(ms); }
+}
@@ -0,0 +1,34 @@
+package com.taliter.fiscal.util;
+
+/** A Clock whose time only advances when a thread sleeps or waits with a timeout, or when advance() is called.
+Sleeping and timed waiting return immediately after advancing the time by the requested amount,
+so simulated timeouts, retries and guard times take no real time. Untimed waits are real waits.
+Intended for single-threaded simulations, such as a device connected to an EmulatorFiscalPort. */
+public class VirtualClock implements Clock
+{
+	private long time;
+
+	public VirtualClock() {}
+	public VirtualClock(long time) { this.time = time; }
+
+	public synchronized long currentTimeMillis() { return time; }
+
+	/** Advance the time by the specified number of milliseconds. */
+	public synchronized void advance(long ms)
+	{
+		if (ms < 0) throw new IllegalArgumentException();
+		time += ms;
+	}
+
+	public void sleep(long ms) throws InterruptedException
+	{
+		if (Thread.interrupted()) throw new InterruptedException();
+		advance(ms);
+	}
+
+	public void wait(Object monitor, long ms) throws InterruptedException
+	{
+		if (ms == 0) monitor.wait();
+		else sleep(ms);
+	}
+}